@@ -22,6 +22,7 @@ public final class R {
         public static final int editText1=0x7f060007;
         public static final int linearLayout1=0x7f060000;
         public static final int perf_msg_fast=0x7f060009;
+        public static final int quit=0x7f06000a;
         public static final int set_address=0x7f060008;
         public static final int textView1=0x7f060006;
     }
@@ -34,5 +35,6 @@ public final class R {
     public static final class string {
         public static final int app_name=0x7f040001;
         public static final int hello=0x7f040000;
+        public static final int service_running=0x7f040002;
     }
 }
@@ -3,13 +3,20 @@ package com.androidTestProject;
 import java.util.List;
 
 import com.fezDominoCommunication.Bluetooth;
+import com.fezDominoCommunication.DeviceDiscovery;
+import com.fezDominoCommunication.FrameCompressor;
+import com.fezDominoCommunication.LinkMonitor;
 import com.fezDominoCommunication.MessageResponse;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -44,8 +51,40 @@ public class AndroidTestProjectActivity extends Activity {
 	private boolean sendingState = false;
 	
 	//Bluetooth class that does all the send/receive/connect stuff
+	//It belongs to BluetoothService so it survives this activity, this is null until we're bound to it
 	private Bluetooth bluetooth;
 	
+	//show link health changes as they happen
+	private LinkMonitor.LinkStateListener linkStateListener = new LinkMonitor.LinkStateListener() {
+		
+		public void onLinkStateChanged(final LinkMonitor.LINK_STATE state, final LinkMonitor monitor) {
+			runOnUiThread(new Runnable() {
+				
+				public void run() {
+					addLine("Link " + state.toString() + ", rtt: " + Long.toString(Math.round(monitor.getSmoothedRttMs())) + " ms, loss: " + Long.toString(Math.round(100 * monitor.getLossRate())) + "%");
+				}
+			});
+		}
+	};
+	
+	//attaches to the service's bluetooth when binding finishes
+	private ServiceConnection serviceConnection = new ServiceConnection() {
+		
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			BluetoothService bluetoothService = ((BluetoothService.LocalBinder)service).getService();
+			if(bluetoothService.getBluetooth() == null)
+			{
+				addLine(bluetoothService.getStartupError());
+				return;
+			}
+			attach(bluetoothService.getBluetooth());
+		}
+		
+		public void onServiceDisconnected(ComponentName name) {
+			detach();
+		}
+	};
+	
 	/*fired when the application is opened*/
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -62,21 +101,22 @@ public class AndroidTestProjectActivity extends Activity {
         stateButton = (Button) findViewById(R.id.button5);
         speedTextView = (TextView) findViewById(R.id.textView1);
         
-        //create a bluetooth communication object
-        try {
-        	this.bluetooth = new Bluetooth(this);
-        } catch (Exception e) {
-        	addLine(e.toString());
-        }
+        //the bluetooth communication object lives in the service, start it (if it isn't already) and bind to it
+        //starting it as well as binding keeps it alive when we unbind
+        Intent serviceIntent = new Intent(this, BluetoothService.class);
+        startService(serviceIntent);
+        bindService(serviceIntent, serviceConnection, BIND_AUTO_CREATE);
         
         
         //set events that are fired when buttons get clicked
         sendButton.setOnClickListener(new View.OnClickListener() {
 			
 			public void onClick(View v) {
+				if(!isAttached())
+					return;
 				
 				Long start = System.currentTimeMillis();
-				MessageResponse response = bluetooth.sendMessage("abcdefgh");
+				MessageResponse response = bluetooth.sendMessage("abcdefgh", true);
 				Long elapsed = System.currentTimeMillis() - start;
 				
 				if(response.isSuccess())
@@ -101,6 +141,9 @@ public class AndroidTestProjectActivity extends Activity {
         reconnectButton.setOnClickListener(new View.OnClickListener() {
 			
 			public void onClick(View v) {
+				if(!isAttached())
+					return;
+				
 				bluetooth.Disconnect();
 				if(bluetooth.Connect(deviceAddress))
 					addLine("Reconnected");
@@ -112,6 +155,9 @@ public class AndroidTestProjectActivity extends Activity {
         listButton.setOnClickListener(new View.OnClickListener(){
 
 			public void onClick(View v) {
+				if(!isAttached())
+					return;
+				
 				List<String> devices = bluetooth.getDeviceAddresses();
 				for(String device : devices)
 				{
@@ -124,6 +170,9 @@ public class AndroidTestProjectActivity extends Activity {
         stateButton.setOnClickListener(new View.OnClickListener() {
 			
 			public void onClick(View arg0) {
+				if(!isAttached())
+					return;
+				
 				Long start = System.currentTimeMillis();
 				if(sendingState)
 				{
@@ -148,12 +197,52 @@ public class AndroidTestProjectActivity extends Activity {
     	textField.setText(textField.getText().toString() + "\n" + s);
     }
     
-    /*fired when the app goes into the background/closes*/
+    /*
+     * Start using the service's bluetooth, and pick up where it is (it may have been running without us)
+     */
+    private void attach(Bluetooth bluetooth)
+    {
+    	this.bluetooth = bluetooth;
+    	if(bluetooth.getLastAddress() != null)
+    		deviceAddress = bluetooth.getLastAddress();
+    	bluetooth.getLinkMonitor().addListener(linkStateListener);
+    	bluetooth.setSpeedUpdateHandler(speedUpdateHandler);
+    	
+    	sendingState = bluetooth.isReceivingStateUpdates();
+    	stateButton.setText(sendingState ? "Stop" : "Start");
+    	addLine(bluetooth.isConnected() ? "Attached, still connected" : "Attached");
+    }
+    
+    /*
+     * Stop listening to the service's bluetooth, it carries on without us
+     */
+    private void detach()
+    {
+    	if(bluetooth == null)
+    		return;
+    	
+    	bluetooth.getLinkMonitor().removeListener(linkStateListener);
+    	bluetooth.setSpeedUpdateHandler(null);
+    	bluetooth = null;
+    }
+    
+    /*whether we have the service's bluetooth yet, tells the user if not*/
+    private boolean isAttached()
+    {
+    	if(bluetooth != null)
+    		return true;
+    	
+    	addLine("Bluetooth service not ready");
+    	return false;
+    }
+    
+    /*fired when the activity goes away, rotation included. The connection stays up in the service*/
     @Override
-    protected void onStop()
+    protected void onDestroy()
     {
-    	super.onStop();
-    	bluetooth.Disconnect();
+    	super.onDestroy();
+    	detach();
+    	unbindService(serviceConnection);
     }
     
     /*this creates the menu that shows up when you hit the menu key*/
@@ -175,13 +264,26 @@ public class AndroidTestProjectActivity extends Activity {
         case R.id.set_address:
         	setAddress();
             return true;
+        case R.id.quit:
+        	quit();
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
     }
     
+    /*disconnect and stop the service, then close. Leaving the app any other way keeps the connection up*/
+    public void quit(){
+    	detach();
+    	stopService(new Intent(this, BluetoothService.class));
+    	finish();
+    }
+    
     /* a quick test of message sending performance, sending continuously*/
     public void performance_test_msg_fast(){
+    	if(!isAttached())
+    		return;
+    	
     	if(!bluetooth.isConnected())
     		bluetooth.Connect(deviceAddress);
     	
@@ -216,7 +318,9 @@ public class AndroidTestProjectActivity extends Activity {
     	
     	//show results
     	AlertDialog.Builder builder = new AlertDialog.Builder(this);
-    	builder.setMessage("sending 3 byte msg: " + Long.toString(time1/count) + " ms/msg.\nSending 50 byte msg: " + Long.toString(time2/count) + " ms/msg.");
+    	FrameCompressor compressor = bluetooth.getCompressor();
+    	String compression = bluetooth.isCompressionNegotiated() ? "Compression: send ratio " + String.format("%.2f", compressor.getSendRatio()) + ", receive ratio " + String.format("%.2f", compressor.getReceiveRatio()) + ", " + Long.toString(compressor.getBytesSaved()) + " bytes saved, " + Long.toString((compressor.getCompressNanos() + compressor.getDecompressNanos()) / 1000) + " us spent." : "Compression off.";
+    	builder.setMessage("sending 3 byte msg: " + Long.toString(time1/count) + " ms/msg.\nSending 50 byte msg: " + Long.toString(time2/count) + " ms/msg.\n" + compression);
     	builder.setNeutralButton("Ok", new DialogInterface.OnClickListener() {
 			
 			public void onClick(DialogInterface dialog, int which) {
@@ -227,10 +331,79 @@ public class AndroidTestProjectActivity extends Activity {
     	alert.show();
     }
     
-    /*set the address that bluetooth connects to*/
+    /*set the address that bluetooth connects to
+     * shows what the last search found straight away if there's anything, otherwise probes the bonded devices first.
+     * Scanning for devices that aren't bonded yet takes a while, so that's only done when asked for from the list*/
     public void setAddress(){
-    	Toast toast = Toast.makeText(this, "Not yet implemented", Toast.LENGTH_SHORT);
+    	if(!isAttached())
+    		return;
+    	
+    	DeviceDiscovery discovery = new DeviceDiscovery(this, bluetooth);
+    	List<DeviceDiscovery.ProbeResult> cached = discovery.getCachedResults();
+    	if(cached.size() > 0)
+    		showDevices(discovery, cached);
+    	else
+    		findDevices(discovery, false);
+    }
+    
+    /*probe devices in the background, then show the list*/
+    private void findDevices(final DeviceDiscovery discovery, final boolean includeNearby){
+    	Toast toast = Toast.makeText(this, includeNearby ? "Scanning for boards..." : "Looking for boards...", Toast.LENGTH_SHORT);
     	toast.show();
+    	
+    	new Thread(new Runnable() {
+			
+			public void run() {
+				final List<DeviceDiscovery.ProbeResult> results = discovery.discover(includeNearby);
+				runOnUiThread(new Runnable() {
+					
+					public void run() {
+						showDevices(discovery, results);
+					}
+				});
+			}
+		}).start();
+    }
+    
+    /*list of devices to pick the address from, with buttons to look again*/
+    private void showDevices(final DeviceDiscovery discovery, final List<DeviceDiscovery.ProbeResult> results){
+    	if(isFinishing() || !isAttached())
+    		return;
+    	
+    	String[] items = new String[results.size()];
+    	for(int i=0;i<results.size();i++)
+    		items[i] = results.get(i).toString();
+    	
+    	AlertDialog.Builder builder = new AlertDialog.Builder(this);
+    	builder.setTitle(results.size() == 0 ? "No devices found" : "Connect to");
+    	builder.setItems(items, new DialogInterface.OnClickListener() {
+			
+			public void onClick(DialogInterface dialog, int which) {
+				deviceAddress = results.get(which).getAddress();
+				if(deviceAddress.equals(bluetooth.getConnectedAddress()))
+					return;
+				
+				bluetooth.Disconnect();
+				if(bluetooth.Connect(deviceAddress))
+					addLine("Connected to " + deviceAddress);
+				else
+					addLine("Couldn't connect to " + deviceAddress);
+			}
+		});
+    	builder.setNeutralButton("Probe again", new DialogInterface.OnClickListener() {
+			
+			public void onClick(DialogInterface dialog, int which) {
+				findDevices(discovery, false);
+			}
+		});
+    	builder.setPositiveButton("Scan nearby", new DialogInterface.OnClickListener() {
+			
+			public void onClick(DialogInterface dialog, int which) {
+				findDevices(discovery, true);
+			}
+		});
+    	AlertDialog alert = builder.create();
+    	alert.show();
     }
     
     private Handler speedUpdateHandler = new Handler(){
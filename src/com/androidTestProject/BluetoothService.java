@@ -0,0 +1,144 @@
+package com.androidTestProject;
+
+import java.io.File;
+
+import com.fezDominoCommunication.Bluetooth;
+import com.fezDominoCommunication.StateStore;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+/*
+ * Owns the Bluetooth connection so it lives as long as the app does, not just as long as an activity.
+ * Rotating the screen, turning it off or switching apps used to disconnect, and then we'd pay for a
+ * whole new connect and lose the state stream.  Now activities bind to this, use getBluetooth(),
+ * and just detach when they go away.  The connection, any requests in flight and the state updates carry on.
+ *
+ * It runs in the foreground (with a notification) so android doesn't kill it while the app is in the background.
+ * It only stops when something calls stopService(), see the Quit menu item.
+ */
+public class BluetoothService extends Service {
+
+	//every state update gets recorded here for looking at after a run
+	public static final String STATE_STORE_FILE = "state.fez";
+
+	//id for the foreground notification
+	private static int NOTIFICATION_ID = 1;
+
+	//Tag for logging
+	public final String TAG = "BluetoothService";
+
+	private Bluetooth bluetooth;
+	private StateStore stateStore;
+
+	//what the error was if Bluetooth couldn't be created, so an activity can show it
+	private String startupError = null;
+
+	private final IBinder binder = new LocalBinder();
+
+	/*
+	 * Activities in this app run in the same process, so binding just hands over the service itself
+	 */
+	public class LocalBinder extends Binder
+	{
+		public BluetoothService getService()
+		{
+			return BluetoothService.this;
+		}
+	}
+
+	@Override
+	public void onCreate()
+	{
+		super.onCreate();
+
+		//create a bluetooth communication object
+		try {
+			this.bluetooth = new Bluetooth(this);
+
+			//record the state stream to disk
+			this.stateStore = new StateStore(new File(getFilesDir(), STATE_STORE_FILE));
+			this.bluetooth.addStateListener(this.stateStore);
+			
+			connectToLastDevice();
+		} catch (Exception e) {
+			Log.d(TAG, "Failed to start bluetooth: " + e.toString());
+			this.startupError = e.toString();
+		}
+
+		//keep going while the app is in the background
+		Intent activityIntent = new Intent(this, AndroidTestProjectActivity.class);
+		PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, activityIntent, 0);
+		Notification notification = new Notification(R.drawable.icon, getText(R.string.service_running), System.currentTimeMillis());
+		notification.setLatestEventInfo(this, getText(R.string.app_name), getText(R.string.service_running), pendingIntent);
+		startForeground(NOTIFICATION_ID, notification);
+	}
+
+	/*
+	 * Reconnect to whatever we were connected to last run, in the background, so the link is usually
+	 * up (over the cached channel, no SDP) by the time anyone looks
+	 */
+	private void connectToLastDevice()
+	{
+		final String address = bluetooth.getLastAddress();
+		if(address == null)
+			return;
+
+		//taken now, so if the service is destroyed before the thread gets to Connect it doesn't connect at all
+		final long disconnects = bluetooth.getDisconnectCount();
+		new Thread(new Runnable() {
+
+			public void run() {
+				if(bluetooth.Connect(address, disconnects))
+					Log.d(TAG, "Reconnected to " + address + " on startup");
+				else
+					Log.d(TAG, "Couldn't reconnect to " + address + " on startup");
+			}
+		}).start();
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId)
+	{
+		//stay running until told to stop, even with nothing bound
+		return START_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent)
+	{
+		return binder;
+	}
+
+	@Override
+	public void onDestroy()
+	{
+		super.onDestroy();
+
+		if(bluetooth != null)
+			bluetooth.Disconnect();
+
+		if(stateStore != null)
+			stateStore.close();
+
+		stopForeground(true);
+	}
+
+	/*
+	 * null if bluetooth couldn't be started, see getStartupError()
+	 */
+	public Bluetooth getBluetooth()
+	{
+		return bluetooth;
+	}
+
+	public String getStartupError()
+	{
+		return startupError;
+	}
+}
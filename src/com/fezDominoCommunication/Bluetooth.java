@@ -1,32 +1,37 @@
 package com.fezDominoCommunication;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import com.androidTestProject.AndroidTestProjectActivity;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
 public class Bluetooth {
 	
 	//requires to start the bluetooth connection
-	private final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+	static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 	
 	//message formatting - this should probably change to be more efficient
 	private static String PARTS_SPLIT = ":";
 	private static String MESSAGE_END = "\n";
+	private static byte MESSAGE_END_BYTE = '\n';
 	
 	//time to wait before giving up waiting for a response from sending the microcontroller a message
 	private static long RESPONSE_TIMEOUT_MS = 10000;	
@@ -35,6 +40,27 @@ public class Bluetooth {
 	//These should definitely be shorter, but for now, oh well
 	private String START_STATE_UPDATES_MSG = "START_STATE";
 	private String STOP_STATE_UPDATES_MSG = "STOP_STATE";
+	//the device just answers this with an empty response
+	private String HEARTBEAT_MSG = "PING";
+	//the device answers this with "<ms it got the request>:<ms it sent the response>" on its own clock
+	private String TIME_SYNC_MSG = "TIME";
+	//exchanges to do when syncing the clock on demand, the least delayed one wins
+	private static int CLOCK_SYNC_SAMPLES = 4;
+	//asks the device if it can take compressed payloads, "COMPRESS:<version>". It answers OK if it can
+	private String COMPRESS_MSG = "COMPRESS";
+	private static int COMPRESSION_VERSION = 1;
+	//device firmware that doesn't know about compression might not answer, so don't wait long for it
+	private static long COMPRESS_NEGOTIATE_TIMEOUT_MS = 1000;
+	//"<stream id>:MORE:<n>" lets the device send n more chunks of a streamed response, "<stream id>:CANCEL" stops it.
+	//Neither gets a response
+	private String STREAM_CREDIT_MSG = "MORE";
+	private String STREAM_CANCEL_MSG = "CANCEL";
+	//chunks the device can send ahead of the consumer by default
+	private static int STREAM_WINDOW = 8;
+	
+	//how often to check the link is still alive. A ping only goes out if nothing else has been received in that time
+	//0 turns heartbeats off
+	private long heartbeatIntervalMs = 1000;
 	
 	private static int BAUD_RATE = 57600; //9600
 	
@@ -43,44 +69,109 @@ public class Bluetooth {
 	
 	//current state - this probably shouldn't be a string but for now it is
 	String current_state = null;
+	//the latest state along with when the device took it
+	private volatile StateSample currentSample = null;
+	
+	/*
+	 * Implement this to get every state update as it comes in
+	 * Called on the ReadThread, so do as little as possible in it
+	 */
+	public static interface StateListener
+	{
+		void onStateUpdate(StateSample sample);
+	}
+	private final CopyOnWriteArrayList<StateListener> stateListeners = new CopyOnWriteArrayList<StateListener>();
 	
 	//counters so we can get an idea of the speed of state updates
 	Long startStateUpdateMs = -1L;
 	int updateCount = 0;
 	
+	//whether we've asked the microcontroller for state updates and not told it to stop yet
+	private volatile boolean stateUpdatesRunning = false;
+	
 	//response types - each message that comes in should have one of these at the start
 	//that way the read thread knows what to do with the message
-	public static enum RESPONSE_TYPE{STATE, RESPONSE};
+	public static enum RESPONSE_TYPE{STATE, RESPONSE, CHUNK};
 	private static String STATE_KEY = "S";
 	private static String RESPONSE_KEY = "R";
+	//one piece of a streamed response, the RESPONSE with the same id ends the stream
+	private static String CHUNK_KEY = "C";
 	
 	//bluetooth communication stuff
 	BluetoothAdapter bluetoothAdapter;
-	BluetoothSocket socket;
+	volatile BluetoothSocket socket;
+	//address of the device socket is connected to, so it can be read without any locking
+	private volatile String connectedAddress = null;
+	
+	//held for the whole of a Connect or Disconnect, so they can't run over each other.
+	//Not the object's lock, a Connect can take seconds and nothing else should have to wait on it
+	private final Object connectLock = new Object();
+	//socket that's in the middle of connect(), so Disconnect can close it to make Connect give up
+	private volatile BluetoothSocket pendingSocket = null;
+	//goes up on every Disconnect. A Connect gives up if it changes between the call and the socket being ready,
+	//so a Disconnect that comes before a waiting Connect even gets the lock still stops it
+	private final AtomicLong disconnectCount = new AtomicLong(0);
+	//disconnectCount as of when the Connect holding connectLock was called
+	private long connectingAsOf;
 	
 	//bluetooth input and output stream that we can read and write to/from
 	InputStream inStream;
 	OutputStream outStream;
 	
 	//Thread that constantly reads from the bluetooth input stream
-	//when it gets a complete message, it gets added to the list of messages
+	//when it gets a complete message, it gets handed to the thread waiting on it
 	ReadThread readThread;
 	
-	//List of messages that the ReadThread adds to everytime it gets a message
-	//These are read when we're looking for a response back
-	private List<ResponseMessage> messages; 
-	//lock this whenever you wanna modify the list of messages
-	//makes sure nothing funny happens between the ReadThread adding to them, and other threads removing items
-	private Lock messagesLock;
+	//Where the ReadThread drops each response for the thread that sent the matching request
+	//The sender registers its message id before sending and parks until the ReadThread unparks it,
+	//so the ReadThread never waits on anyone
+	private final ResponseMailbox<ResponseMessage> responses = new ResponseMailbox<ResponseMessage>();
+	
+	//streamed responses still coming in, by message id.  The ReadThread hands them chunks without waiting on anyone
+	private final ConcurrentHashMap<String, ResponseStream> streams = new ConcurrentHashMap<String, ResponseStream>();
+	
+	//source of message ids, only needs to be unique while a request is outstanding
+	private final AtomicLong nextMessageID = new AtomicLong(System.currentTimeMillis());
+	
+	//held while writing a message to outStream, so messages from different threads don't get mixed together
+	private final Object writeLock = new Object();
+	
+	//responses dropped because their request was already answered
+	private final AtomicLong duplicateResponses = new AtomicLong(0);
+	
+	//compresses payloads we send and decompresses ones we get, and keeps stats on how much it helps
+	private final FrameCompressor compressor = new FrameCompressor();
+	//whether to ask the device for compression when connecting
+	private boolean compressionWanted = true;
+	//whether the device said it can take compressed payloads. The device can always send us compressed ones
+	private volatile boolean compressionNegotiated = false;
+	//payloads shorter than this aren't worth trying to compress
+	private int compressionThresholdBytes = 48;
+	
+	//keeps track of rtt, loss and whether the link is actually alive
+	private final LinkMonitor linkMonitor = new LinkMonitor();
+	
+	//offset and drift between the device's clock and ours, so state timestamps mean something to us
+	private final ClockSync clockSync = new ClockSync();
+	
+	//Thread that pings the device when the link has been quiet for a heartbeat interval
+	HeartbeatThread heartbeatThread;
 	
-	private AndroidTestProjectActivity parent;
+	//gets sent the state updates per second every so often. null when nobody is showing it
+	private volatile Handler speedUpdateHandler;
+	
+	//last device and its RFCOMM channel, so connecting can skip the SDP lookup
+	private ConnectionProfile profile;
+	//BluetoothDevice.createRfcommSocket(int), it's hidden so it has to be looked up. null if this android doesn't have it
+	private Method createRfcommSocketMethod;
 
 	/*
 	 * Create the bluetooth object
 	 * Does not connect, but will turn on the bluetooth hardware 
 	 * (user gets prompted)
+	 * context can be a Service, this object is meant to outlive any one activity
 	 */
-	public Bluetooth(AndroidTestProjectActivity context) throws Exception
+	public Bluetooth(Context context) throws Exception
 	{
 		bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
 		if(bluetoothAdapter == null)
@@ -89,21 +180,120 @@ public class Bluetooth {
 		if(!bluetoothAdapter.isEnabled())
 		{
 			Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+			//needed when context isn't an activity
+			enableBtIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 			context.startActivity(enableBtIntent);
 		}
 		
-		this.messagesLock = new ReentrantLock();
-		this.parent = context;
+		this.profile = new ConnectionProfile(context);
 		
+		//get the slow bits of connecting out of the way now rather than when someone is waiting on Connect
+		warmUp();
+	}
+	
+	/*
+	 * Looks up the hidden direct channel socket method once, reflection is too slow to do on every Connect
+	 */
+	private void warmUp()
+	{
+		try
+		{
+			this.createRfcommSocketMethod = BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+		} catch(Exception e) {
+			Log.d(TAG, "No createRfcommSocket(), connects will always use SDP: " + e.toString());
+		}
+	}
+	
+	/*
+	 * Address of the last device we connected to, null if there hasn't been one.  Handy for connecting on startup
+	 */
+	public String getLastAddress()
+	{
+		return profile.getAddress();
+	}
+
+	/*
+	 * Address of the device we're connected to right now, null if we aren't
+	 */
+	public String getConnectedAddress()
+	{
+		return connectedAddress;
+	}
+
+	BluetoothAdapter getAdapter()
+	{
+		return bluetoothAdapter;
+	}
+
+	/*
+	 * Set where the updates per second go (msg.obj is an Integer), or null to stop sending them
+	 */
+	public void setSpeedUpdateHandler(Handler speedUpdateHandler)
+	{
+		this.speedUpdateHandler = speedUpdateHandler;
+	}
+	
+	/*
+	 * Whether state updates have been started and not stopped
+	 */
+	public boolean isReceivingStateUpdates()
+	{
+		return stateUpdatesRunning;
 	}
 	
 	/*
 	 * Connect to the device at the provided address
 	 * Returns whether this was successful, prints stuff to log
 	 * if it failed
+	 * Only one Connect or Disconnect runs at a time, since the service connects in the background on startup
+	 * while the user may hit Connect.  A Disconnect makes a Connect that's still in progress give up
 	 */
 	public boolean Connect(String address)
 	{
+		return Connect(address, this.disconnectCount.get());
+	}
+	
+	/*
+	 * Same as Connect(address), but gives up if there has been a Disconnect since getDisconnectCount() returned asOf.
+	 * For connecting from a background thread: get the count before starting the thread, so a Disconnect that
+	 * comes before the thread even gets going still stops it
+	 */
+	public boolean Connect(String address, long asOf)
+	{
+		synchronized(this.connectLock)
+		{
+			this.connectingAsOf = asOf;
+			if(connectAborted())
+			{
+				Log.d(TAG, "Aborting connect - disconnected while waiting to start");
+				return false;
+			}
+			return connectLocked(address);
+		}
+	}
+	
+	public long getDisconnectCount()
+	{
+		return this.disconnectCount.get();
+	}
+	
+	/*
+	 * Whether a Disconnect has come in since the current Connect was called.  Only while holding connectLock
+	 */
+	private boolean connectAborted()
+	{
+		return this.disconnectCount.get() != this.connectingAsOf;
+	}
+	
+	private boolean connectLocked(String address)
+	{
+		//the link monitor gave up on this one, isConnected() already says false, so clear it out and start over
+		if(this.socket != null && linkMonitor.getState() == LinkMonitor.LINK_STATE.DEAD)
+		{
+			Log.d(TAG, "Link is dead, disconnecting it before connecting again");
+			disconnectLocked();
+		}
+		
 		if(this.socket != null)
 		{
 			Log.d(TAG, "Aborting connect - socket is not null");
@@ -124,27 +314,41 @@ public class Bluetooth {
 			return false;
 		}
 		
-		try
+		//discovery hogs the radio and slows connecting right down
+		this.bluetoothAdapter.cancelDiscovery();
+		
+		//straight to the channel we used last time if we know it, SDP lookup if not or if that doesn't work
+		long startConnect = System.currentTimeMillis();
+		int channel = this.profile.getChannel(address);
+		BluetoothSocket newSocket = null;
+		if(channel > 0)
 		{
-			this.socket = device.createRfcommSocketToServiceRecord(this.SPP_UUID);
-		} catch(IOException e) {
-			Log.d(TAG, "failed to createRfcommSocketToServiceRecord(): " + e.toString());
-			return false;
+			newSocket = connectToChannel(device, channel);
 		}
-			
-		try
+		
+		if(newSocket == null && !connectAborted())
 		{
-			this.socket.connect();
-		} catch (IOException e){
-			Log.d(TAG, "failed to connect to socket: " + e.toString());
+			newSocket = connectWithSdp(device);
+			if(newSocket != null)
+				channel = getChannel(newSocket);
+		}
+		
+		if(newSocket == null)
+			return false;
+		if(connectAborted())
+		{
+			Log.d(TAG, "Connect aborted by Disconnect");
 			try
 			{
-				this.socket.close();
-			} catch (Exception e2){}
-			
+				newSocket.close();
+			} catch (Exception e){}
 			return false;
 		}
 		
+		Log.d(TAG, "Socket connected on channel " + Integer.toString(channel) + " in " + Long.toString(System.currentTimeMillis() - startConnect) + " ms");
+		this.profile.save(address, channel);
+		this.socket = newSocket;
+		
 		try
 		{
 			this.inStream = this.socket.getInputStream();
@@ -156,6 +360,7 @@ public class Bluetooth {
 				this.socket.close();
 			} catch (Exception e2){}
 			
+			this.socket = null;
 			return false;
 		}
 		
@@ -170,23 +375,164 @@ public class Bluetooth {
 				this.socket.close();
 			} catch (Exception e2){}
 			
+			this.socket = null;
+			this.inStream = null;
 			return false;
 		}
 		
-		this.messages = new ArrayList<ResponseMessage>();
+		this.linkMonitor.reset();
+		this.clockSync.reset();
+		this.currentSample = null;
 		this.readThread = new ReadThread(this.inStream);
 		this.readThread.start();
 		
+		if(this.heartbeatIntervalMs > 0)
+		{
+			this.heartbeatThread = new HeartbeatThread(this.heartbeatIntervalMs);
+			this.heartbeatThread.start();
+		}
+		
+		//frames go out uncompressed until the device agrees, so Connect doesn't wait on firmware that never answers
+		this.compressionNegotiated = false;
+		if(this.compressionWanted)
+			negotiateCompressionInBackground();
+		
+		this.connectedAddress = address;
 		Log.d(TAG, "Connect succeeded");
 		
 		return true;
 	}
 	
+	/*
+	 * The normal way, look up the serial port service's channel with SDP then connect to it
+	 * Returns the connected socket, or null if it failed
+	 */
+	private BluetoothSocket connectWithSdp(BluetoothDevice device)
+	{
+		BluetoothSocket newSocket;
+		try
+		{
+			newSocket = device.createRfcommSocketToServiceRecord(SPP_UUID);
+		} catch(IOException e) {
+			Log.d(TAG, "failed to createRfcommSocketToServiceRecord(): " + e.toString());
+			return null;
+		}
+		
+		try
+		{
+			connectAbortably(newSocket);
+		} catch (IOException e){
+			Log.d(TAG, "failed to connect to socket: " + e.toString());
+			try
+			{
+				newSocket.close();
+			} catch (Exception e2){}
+			
+			return null;
+		}
+		
+		return newSocket;
+	}
+	
+	/*
+	 * The fast way, connect straight to a channel we already know with no SDP lookup
+	 * Returns the connected socket, or null if it failed or this android can't do it
+	 */
+	private BluetoothSocket connectToChannel(BluetoothDevice device, int channel)
+	{
+		if(this.createRfcommSocketMethod == null)
+			return null;
+		
+		BluetoothSocket newSocket;
+		try
+		{
+			newSocket = (BluetoothSocket)this.createRfcommSocketMethod.invoke(device, Integer.valueOf(channel));
+		} catch(Exception e) {
+			Log.d(TAG, "failed to createRfcommSocket(" + Integer.toString(channel) + "): " + e.toString());
+			return null;
+		}
+		
+		try
+		{
+			connectAbortably(newSocket);
+		} catch (IOException e){
+			Log.d(TAG, "failed to connect straight to channel " + Integer.toString(channel) + ", falling back to SDP: " + e.toString());
+			try
+			{
+				newSocket.close();
+			} catch (Exception e2){}
+			
+			return null;
+		}
+		
+		return newSocket;
+	}
+	
+	/*
+	 * socket.connect(), except Disconnect can make it give up by closing the socket from another thread
+	 */
+	private void connectAbortably(BluetoothSocket newSocket) throws IOException
+	{
+		this.pendingSocket = newSocket;
+		try
+		{
+			//checked after pendingSocket is set, so a Disconnect either sees the socket to close or we see the abort
+			if(connectAborted())
+				throw new IOException("connect aborted");
+			newSocket.connect();
+		} finally {
+			this.pendingSocket = null;
+		}
+	}
+	
+	/*
+	 * The channel SDP found for a connected socket, it's in a hidden field. -1 if we can't get at it
+	 */
+	private int getChannel(BluetoothSocket socket)
+	{
+		try
+		{
+			Field port = BluetoothSocket.class.getDeclaredField("mPort");
+			port.setAccessible(true);
+			return port.getInt(socket);
+		} catch(Exception e) {
+			Log.d(TAG, "Couldn't read the socket's channel: " + e.toString());
+			return -1;
+		}
+	}
+	
 	/*
 	 * Tell the bluetooth connection to stop, make socket, inStream and outStream all null too
+	 * Doesn't wait out a Connect that's still trying, that gets aborted
 	 */
 	public boolean Disconnect()
 	{
+		this.disconnectCount.incrementAndGet();
+		BluetoothSocket pending = this.pendingSocket;
+		if(pending != null)
+		{
+			try
+			{
+				pending.close();
+			} catch(IOException e) {}
+		}
+		
+		synchronized(this.connectLock)
+		{
+			return disconnectLocked();
+		}
+	}
+	
+	private boolean disconnectLocked()
+	{
+		this.connectedAddress = null;
+
+		if(this.heartbeatThread != null)
+		{
+			this.heartbeatThread.stopBeating();
+			this.heartbeatThread = null;
+		}
+		
 		if(this.readThread != null)
 		{
 			this.readThread.stopReading();
@@ -200,6 +546,17 @@ public class Bluetooth {
 			}
 		}
 		
+		//anyone still waiting on a response isn't going to get one
+		responses.clear();
+		for(String id : streams.keySet())
+		{
+			ResponseStream stream = streams.remove(id);
+			if(stream != null)
+				stream.end(MessageResponse.newError(MessageResponse.ERROR_NOT_CONNECTED, "disconnected"));
+		}
+		stateUpdatesRunning = false;
+		compressionNegotiated = false;
+		
 		if(socket == null)
 		{
 			return false;
@@ -221,24 +578,216 @@ public class Bluetooth {
 		
 		Log.d(TAG, "Disconnect succeeded");
 		
-		return true;
+		return true;
+	}
+	
+	/*
+	 * Connected means we have a socket and the link monitor hasn't given up on the link
+	 * A socket that's open but hasn't heard from the device in a few heartbeats doesn't count
+	 */
+	public boolean isConnected()
+	{
+		return socket != null && linkMonitor.getState() != LinkMonitor.LINK_STATE.DEAD;
+	}
+	
+	/*
+	 * Current link health, smoothed rtt and loss rate. Add a listener to it to hear about changes
+	 */
+	public LinkMonitor getLinkMonitor()
+	{
+		return linkMonitor;
+	}
+	
+	/*
+	 * Ask the device whether it can take compressed payloads, after this sendMessage compresses any over the threshold.
+	 * Done in the background after Connect unless turned off with setCompression. Returns whether the device agreed
+	 */
+	public boolean negotiateCompression()
+	{
+		compressionNegotiated = false;
+		compressionNegotiated = askForCompression();
+		return compressionNegotiated;
+	}
+	
+	/*
+	 * Same as negotiateCompression, but on its own thread so Connect can return straight away.
+	 * The answer only counts if we're still on the connection it was asked on
+	 */
+	private void negotiateCompressionInBackground()
+	{
+		final BluetoothSocket askedOn = this.socket;
+		new Thread(new Runnable() {
+			
+			public void run() {
+				boolean agreed = askForCompression();
+				if(socket == askedOn)
+					compressionNegotiated = agreed;
+			}
+		}).start();
+	}
+	
+	private boolean askForCompression()
+	{
+		MessageResponse response = sendMessage(COMPRESS_MSG + PARTS_SPLIT + Integer.toString(COMPRESSION_VERSION), COMPRESS_NEGOTIATE_TIMEOUT_MS);
+		boolean agreed = response.isSuccess() && "OK".equals(response.getResponse());
+		Log.d(TAG, "Compression " + (agreed ? "on" : "off"));
+		return agreed;
+	}
+	
+	/*
+	 * Whether to negotiate compression on the next Connect, and the smallest payload worth compressing
+	 */
+	public void setCompression(boolean wanted, int thresholdBytes)
+	{
+		this.compressionWanted = wanted;
+		this.compressionThresholdBytes = thresholdBytes;
+	}
+	
+	public boolean isCompressionNegotiated()
+	{
+		return compressionNegotiated;
+	}
+	
+	/*
+	 * Compression ratio both ways, bytes saved and time spent, to judge whether it's worth having on
+	 */
+	public FrameCompressor getCompressor()
+	{
+		return compressor;
+	}
+	
+	/*
+	 * Offset and drift between the device's clock and ours, and the uplink/processing/downlink split of the latest sync
+	 */
+	public ClockSync getClockSync()
+	{
+		return clockSync;
+	}
+	
+	/*
+	 * Do a few clock sync exchanges right now instead of waiting for the heartbeat thread to get to it
+	 * Returns whether at least one of them worked
+	 */
+	public boolean syncClock()
+	{
+		boolean synced = false;
+		for(int i=0;i<CLOCK_SYNC_SAMPLES;i++)
+			synced |= syncClockOnce(RESPONSE_TIMEOUT_MS);
+		return synced;
+	}
+	
+	/*
+	 * One NTP style exchange, see ClockSync
+	 */
+	private boolean syncClockOnce(long timeoutMs)
+	{
+		PendingRequest request = sendAsync(TIME_SYNC_MSG);
+		MessageResponse response = request.await(timeoutMs);
+		if(!response.isSuccess())
+			return false;
+		
+		String[] parts = response.getResponse().split(PARTS_SPLIT);
+		try
+		{
+			clockSync.addExchange(request.getSentMs(), Long.parseLong(parts[0]), Long.parseLong(parts[1]), request.getReceivedMs());
+		} catch(Exception e) {
+			Log.d(TAG, "Bad clock sync response: '" + response.getResponse() + "'");
+			return false;
+		}
+		
+		Log.d(TAG, "Clock offset " + Long.toString(Math.round(clockSync.getOffsetMs(ClockSync.nowMs()))) + " ms, uplink " + Long.toString(clockSync.getLastUplinkMs()) + " ms, processing " + Long.toString(clockSync.getLastProcessingMs()) + " ms, downlink " + Long.toString(clockSync.getLastDownlinkMs()) + " ms");
+		return true;
+	}
+	
+	/*
+	 * The latest state update, with its timestamps. null if there hasn't been one this connection
+	 */
+	public StateSample getCurrentSample()
+	{
+		return currentSample;
+	}
+	
+	/*
+	 * Time from the device taking the latest state sample to us receiving it, or -1 if unknown
+	 */
+	public long getStateOneWayLatencyMs()
+	{
+		StateSample sample = currentSample;
+		return sample == null ? -1 : sample.getOneWayLatencyMs();
+	}
+	
+	/*
+	 * How old the latest state sample is right now, or -1 if unknown
+	 */
+	public long getStateAgeMs()
+	{
+		StateSample sample = currentSample;
+		return sample == null ? -1 : sample.getAgeMs();
+	}
+	
+	public void addStateListener(StateListener listener)
+	{
+		stateListeners.add(listener);
+	}
+	
+	public void removeStateListener(StateListener listener)
+	{
+		stateListeners.remove(listener);
+	}
+	
+	/*
+	 * Change how often heartbeats are sent, takes effect on the next Connect. 0 turns them off
+	 */
+	public void setHeartbeatIntervalMs(long intervalMs)
+	{
+		this.heartbeatIntervalMs = intervalMs;
+	}
+	
+	/*
+	 * Send a message to the controller, and receive a response
+	 * Return value is the message received from the device
+	 * A unique id is appended to the message being sent, and is expected in message returned
+	 * This way we can know that the response received was from this particular message (if many messages are sent very quickly)
+	 */
+	public MessageResponse sendMessage(String msg)
+	{
+		return sendMessage(msg, RESPONSE_TIMEOUT_MS);
+	}
+	
+	/*
+	 * Same as sendMessage(msg), but if idempotent is true the message is sent again (same id) whenever
+	 * the response hasn't come back within the link's retransmit timeout, which is a few rtts instead of
+	 * RESPONSE_TIMEOUT_MS.  Only pass true for commands that are safe for the device to act on twice.
+	 */
+	public MessageResponse sendMessage(String msg, boolean idempotent)
+	{
+		if(!idempotent)
+			return sendMessage(msg);
+		
+		return sendAsync(msg).awaitWithRetransmit(RESPONSE_TIMEOUT_MS);
 	}
 	
 	/*
-	 * Theres probably a better way to check than this
+	 * How many responses have come in for requests that were already answered, from retransmits the original made it for
 	 */
-	public boolean isConnected()
+	public long getDuplicateResponseCount()
 	{
-		return socket != null;
+		return duplicateResponses.get();
 	}
 	
 	/*
-	 * Send a message to the controller, and receive a response
-	 * Return value is the message received from the device
-	 * A unique id is appended to the message being sent, and is expected in message returned
-	 * This way we can know that the response received was from this particular message (if many messages are sent very quickly)
+	 * Same as sendMessage(msg), but gives up waiting for the response after timeoutMs
 	 */
-	public MessageResponse sendMessage(String msg)
+	private MessageResponse sendMessage(String msg, long timeoutMs)
+	{
+		return sendAsync(msg).await(timeoutMs);
+	}
+	
+	/*
+	 * Send a message without waiting for the response.  Call await() on the result to get it.
+	 * This lets one thread keep several requests in flight at once (see BulkUpload)
+	 */
+	PendingRequest sendAsync(String msg)
 	{
 		//make sure the message ends with the special message ending character
 		if(!msg.endsWith(MESSAGE_END))
@@ -246,15 +795,40 @@ public class Bluetooth {
 		
 		//make sure we have a stream to read and write from
 		if(this.inStream == null || this.outStream == null)
-			return MessageResponse.newError(MessageResponse.ERROR_NOT_CONNECTED, "input or output stream was null");
+			return new PendingRequest(MessageResponse.newError(MessageResponse.ERROR_NOT_CONNECTED, "input or output stream was null"));
 		
 		//get a unique id for the message
 		//this way we can be sure the response we receive is from the request that is sent
 		String messageID = getUniqueID();
 		Log.d(TAG, "messageId is: " + messageID);
 		
-		Long startSend = System.currentTimeMillis();
+		long startSend = ClockSync.nowMs();
+		
+		byte[] outBuffer = buildFrame(messageID, msg);
+		
+		//register for the response before sending, so the ReadThread has somewhere to put it even if it comes back right away
+		ResponseMailbox.Slot<ResponseMessage> slot = responses.register(messageID);
+		
+		try
+		{
+			writeFrame(outBuffer);
+		} catch (IOException e)
+		{
+			responses.unregister(slot);
+			return new PendingRequest(MessageResponse.newError(MessageResponse.ERROR_SEND_FAILURE, e.toString()));
+		}
+		
+		Long sendElapsed = ClockSync.nowMs() - startSend;
+		Log.d(TAG, "Sending message out took " + Long.toString(sendElapsed) + " ms");
 		
+		return new PendingRequest(slot, startSend, outBuffer);
+	}
+	
+	/*
+	 * The bytes that go out for msg (which already ends with MESSAGE_END) under messageID
+	 */
+	private byte[] buildFrame(String messageID, String msg)
+	{
 		//get the complete message, then in bytes
 		String toSend = messageID + PARTS_SPLIT + msg;
 		
@@ -263,57 +837,297 @@ public class Bluetooth {
 		
 		byte[] outBuffer = toSend.getBytes();
 		
-		Log.d(TAG, "length to send: " + Integer.toString(toSend.length()) + "  msg: " + toSend);
+		//big enough payloads go compressed if the device can take it, the header stays as is
+		byte[] payload = msg.substring(0, msg.length() - MESSAGE_END.length()).getBytes();
+		if(compressionNegotiated && payload.length >= compressionThresholdBytes)
+		{
+			byte[] packed = compressor.pack(payload);
+			if(packed != null)
+			{
+				ByteArrayOutputStream frame = new ByteArrayOutputStream(packed.length + 16);
+				byte[] header = (messageID + PARTS_SPLIT).getBytes();
+				frame.write(header, 0, header.length);
+				frame.write(packed, 0, packed.length);
+				frame.write(MESSAGE_END_BYTE);
+				outBuffer = frame.toByteArray();
+			}
+		}
+		
+		Log.d(TAG, "length to send: " + Integer.toString(outBuffer.length) + "  msg: " + toSend);
+		return outBuffer;
+	}
+	
+	/*
+	 * Send a message whose response comes back in chunks, see ResponseStream.  Returns straight away,
+	 * take the chunks with nextChunk() as they arrive.  The device can send STREAM_WINDOW chunks before
+	 * it has to wait for the consumer to catch up
+	 */
+	public ResponseStream sendStreaming(String msg)
+	{
+		return sendStreaming(msg, STREAM_WINDOW);
+	}
+	
+	/*
+	 * Same as sendStreaming(msg), with a window of windowChunks.  Bigger keeps a fast consumer from ever
+	 * waiting on the link, smaller bounds how much gets queued up for a slow one
+	 */
+	public ResponseStream sendStreaming(String msg, int windowChunks)
+	{
+		if(!msg.endsWith(MESSAGE_END))
+			msg += MESSAGE_END;
+		
+		if(this.inStream == null || this.outStream == null)
+			return new ResponseStream(MessageResponse.newError(MessageResponse.ERROR_NOT_CONNECTED, "input or output stream was null"));
+		
+		String messageID = getUniqueID();
+		//the device gets as long between chunks as a normal request gets to answer
+		ResponseStream stream = new ResponseStream(this, messageID, windowChunks, RESPONSE_TIMEOUT_MS);
+		
+		//registered before sending, same as a normal request, so the first chunk has somewhere to go
+		streams.put(messageID, stream);
 		
-		//write the msg to the output stream.  Needs locking?
 		try
 		{
-			this.outStream.write(outBuffer);
+			writeFrame(buildFrame(messageID, msg));
+			//the device starts with no credit, this is the whole first window
+			writeFrame((messageID + PARTS_SPLIT + STREAM_CREDIT_MSG + PARTS_SPLIT + Integer.toString(windowChunks) + MESSAGE_END).getBytes());
 		} catch (IOException e)
 		{
-			return MessageResponse.newError(MessageResponse.ERROR_SEND_FAILURE, e.toString());
+			streams.remove(messageID);
+			stream.end(MessageResponse.newError(MessageResponse.ERROR_SEND_FAILURE, e.toString()));
+		}
+		
+		return stream;
+	}
+	
+	/*
+	 * Let the device send count more chunks of a stream.  false if it couldn't be sent
+	 */
+	boolean sendStreamCredit(String streamID, int count)
+	{
+		try
+		{
+			writeFrame((streamID + PARTS_SPLIT + STREAM_CREDIT_MSG + PARTS_SPLIT + Integer.toString(count) + MESSAGE_END).getBytes());
+			return true;
+		} catch(IOException e)
+		{
+			Log.d(TAG, "Couldn't send stream credit: " + e.toString());
+			return false;
+		}
+	}
+	
+	/*
+	 * Tell the device to stop a stream, and drop anything else that comes in for it
+	 */
+	void cancelStream(String streamID)
+	{
+		streams.remove(streamID);
+		try
+		{
+			writeFrame((streamID + PARTS_SPLIT + STREAM_CANCEL_MSG + MESSAGE_END).getBytes());
+		} catch(IOException e)
+		{
+			Log.d(TAG, "Couldn't send stream cancel: " + e.toString());
+		}
+	}
+	
+	/*
+	 * write the msg to the output stream.  Locked since the heartbeat thread and bulk uploads write too,
+	 * and two messages getting their bytes interleaved would garble both
+	 */
+	private void writeFrame(byte[] outBuffer) throws IOException
+	{
+		OutputStream out = this.outStream;
+		if(out == null)
+			throw new IOException("not connected");
+		
+		synchronized(this.writeLock)
+		{
+			out.write(outBuffer);
+		}
+	}
+	
+	/*
+	 * A request that has been sent (or failed to send) and whose response hasn't been collected yet
+	 */
+	class PendingRequest
+	{
+		private ResponseMailbox.Slot<ResponseMessage> slot;
+		private long startSend;
+		//when the ReadThread got the response, -1 until then
+		private long receivedMs = -1;
+		
+		//the whole frame, id included, kept so it can be retransmitted as is
+		private byte[] outBuffer;
+		private int retransmits = 0;
+		
+		//set if the request never made it out, await() just returns it
+		private MessageResponse failure;
+		
+		PendingRequest(ResponseMailbox.Slot<ResponseMessage> slot, long startSend, byte[] outBuffer)
+		{
+			this.slot = slot;
+			this.startSend = startSend;
+			this.outBuffer = outBuffer;
+		}
+		
+		PendingRequest(MessageResponse failure)
+		{
+			this.failure = failure;
 		}
 		
 		/*
 		 * Now that the message is sent, the microcontroller is expected to respond with some kind of acknoledgement
-		 * The ReadThread will receive this message, and insert it into "message", a list of ResponseMessage
-		 * So we keep looking through the list of ResponseMessages until one exists with the uniqueId that we 
-		 * previously sent out.
+		 * The ReadThread will receive this message, see the id we registered, drop it in our slot and wake us up.
+		 * Until then this thread is parked, not spinning.
 		 * If this doesn't occur within the timeout, we just return an error MessageResponse to indicate this
 		 */
-		
-		Long sendElapsed = System.currentTimeMillis() - startSend;
-		Log.d(TAG, "Sending message out took " + Long.toString(sendElapsed) + " ms");
-		
-		long startWaitTime = System.currentTimeMillis();
-		ResponseMessage properMessage = null;
-		while((System.currentTimeMillis() - startWaitTime) < RESPONSE_TIMEOUT_MS)
+		MessageResponse await(long timeoutMs)
 		{
-			//lock messages, cause you can't iterate over a list that is modified during iteration
-			messagesLock.lock();
-			for(ResponseMessage message : this.messages){
-				properMessage = message;
-				break;
-			}
+			if(failure != null)
+				return failure;
+			
+			long startWaitTime = System.currentTimeMillis();
+			ResponseMessage properMessage = responses.await(slot, timeoutMs);
 			
 			if(properMessage != null)
 			{
-				//list also needs to be locked here, so it doesn't remove the wrong message or something weird like that
-				this.messages.remove(properMessage);
-				messagesLock.unlock();
-				
 				Long receiveElapsed = System.currentTimeMillis() - startWaitTime;
 				Log.d(TAG, "Receiving a response to msg took " + Long.toString(receiveElapsed) + " ms");
+				return received(properMessage);
+			}
+			
+			//nothing was delivered, we timed out (or got disconnected while waiting)
+			return MessageResponse.newError(MessageResponse.ERROR_TIMEOUT, "");
+		}
+		
+		/*
+		 * Like await, but on a timeout the request is left waiting for its response, so it can be retransmit()ted
+		 * and still be answered.  Call cancel() when giving up on it.
+		 */
+		MessageResponse poll(long timeoutMs)
+		{
+			if(failure != null)
+				return failure;
+			
+			ResponseMessage properMessage = responses.poll(slot, timeoutMs);
+			if(properMessage != null)
+				return received(properMessage);
+			
+			return MessageResponse.newError(MessageResponse.ERROR_TIMEOUT, "");
+		}
+		
+		/*
+		 * Like await, but instead of sitting out the whole timeout on a lost frame, the same frame (same id) goes out
+		 * again after each retransmit timeout, doubling the timeout each time, until totalTimeoutMs is up.
+		 * Whichever copy gets answered first wins, answers to the others are dropped as duplicates by the ReadThread.
+		 */
+		MessageResponse awaitWithRetransmit(long totalTimeoutMs)
+		{
+			if(failure != null)
+				return failure;
+			
+			long deadline = System.currentTimeMillis() + totalTimeoutMs;
+			long rto = linkMonitor.getRetransmitTimeoutMs();
+			while(true)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				ResponseMessage properMessage = responses.poll(slot, Math.min(rto, Math.max(remaining, 0)));
+				if(properMessage != null)
+				{
+					responses.unregister(slot);
+					return received(properMessage);
+				}
+				
+				//the response can land between poll giving up and here. value is written before done, so once
+				//done is set, value is either the response or null because the mailbox was cleared
+				if(slot.done)
+				{
+					responses.unregister(slot);
+					properMessage = slot.value;
+					if(properMessage != null)
+						return received(properMessage);
+					return MessageResponse.newError(MessageResponse.ERROR_TIMEOUT, "");
+				}
+				
+				//out of time, or interrupted (poll won't wait while the interrupt flag is set)
+				if(deadline - System.currentTimeMillis() <= 0 || Thread.currentThread().isInterrupted())
+				{
+					responses.unregister(slot);
+					return MessageResponse.newError(MessageResponse.ERROR_TIMEOUT, "");
+				}
 				
-				//we has success!
-				return MessageResponse.newSuccess(properMessage.msg);
+				retransmits++;
+				rto *= 2;
+				Log.d(TAG, "No response in time, retransmit " + Integer.toString(retransmits) + " of id " + slot.id);
+				try
+				{
+					writeFrame(outBuffer);
+				} catch (IOException e)
+				{
+					responses.unregister(slot);
+					return MessageResponse.newError(MessageResponse.ERROR_SEND_FAILURE, e.toString());
+				}
 			}
+		}
+		
+		private MessageResponse received(ResponseMessage properMessage)
+		{
+			receivedMs = properMessage.receivedMs;
 			
-			messagesLock.unlock();
+			//every answered request is a free rtt sample, not just heartbeats
+			//unless it was retransmitted, then there's no telling which copy was answered (Karn's algorithm)
+			if(retransmits == 0)
+				linkMonitor.addRttSample(receivedMs - startSend);
+			
+			//we has success!
+			return MessageResponse.newSuccess(properMessage.msg);
+		}
+		
+		/*
+		 * Send the same frame again, same id, without waiting. For callers managing their own timeouts (BulkUpload)
+		 * Returns false if it couldn't be written
+		 */
+		boolean retransmit()
+		{
+			if(failure != null)
+				return false;
+			
+			retransmits++;
+			try
+			{
+				writeFrame(outBuffer);
+				return true;
+			} catch (IOException e)
+			{
+				return false;
+			}
+		}
+		
+		/*
+		 * When the request went out, on ClockSync's clock
+		 */
+		long getSentMs()
+		{
+			return startSend;
+		}
+		
+		/*
+		 * When the response came in, on ClockSync's clock. -1 if it hasn't
+		 */
+		long getReceivedMs()
+		{
+			return receivedMs;
+		}
+		
+		/*
+		 * Stop waiting for the response, if it shows up later it gets dropped
+		 */
+		void cancel()
+		{
+			if(slot != null)
+				responses.unregister(slot);
 		}
-
-		//if we got out of the while loop, we timed out
-		return MessageResponse.newError(MessageResponse.ERROR_TIMEOUT, "");
 	}
 	
 	/*
@@ -326,10 +1140,13 @@ public class Bluetooth {
 		//startStateUpdateMs = System.currentTimeMillis();
 		startStateUpdateMs = -1L;
 		
-		MessageResponse response = this.sendMessage(START_STATE_UPDATES_MSG);
+		MessageResponse response = this.sendMessage(START_STATE_UPDATES_MSG, true);
 		
 		if(response.isSuccess())
+		{
+			stateUpdatesRunning = true;
 			return true;
+		}
 		
 		Log.d(TAG, "Sending begin state updates message error: " + response.error);
 		return false;
@@ -341,10 +1158,13 @@ public class Bluetooth {
 	 */
 	public boolean stopStateUpdates()
 	{
-		MessageResponse response = this.sendMessage(STOP_STATE_UPDATES_MSG);
+		MessageResponse response = this.sendMessage(STOP_STATE_UPDATES_MSG, true);
 		
 		if(response.isSuccess())
+		{
+			stateUpdatesRunning = false;
 			return true;
+		}
 		
 		Log.d(TAG, "Sending stop state updates message error: " + response.error);
 		return false;
@@ -352,13 +1172,13 @@ public class Bluetooth {
 	
 	/*
 	creates a unique id string for each message to be sent.
-	right now it just returns the current time in ms, however this
-	is pretty awful, since the messages that are likely to be confused
-	are likely to have been sent at almost exactly the same time
+	It's a counter (started from the current time so ids don't repeat right after a restart)
+	rather than the time itself, since messages sent in the same ms would otherwise share an id
+	and the response would go to the wrong waiter
 	*/
 	private String getUniqueID()
 	{
-		return Long.toString(System.currentTimeMillis());
+		return Long.toString(nextMessageID.incrementAndGet());
 	}
 	
 	/*returns a list of device names and addresses that the device has been connected to
@@ -387,6 +1207,8 @@ public class Bluetooth {
 		String ID;
 		String msg;
 		RESPONSE_TYPE responseType;
+		//when the full frame came in, on ClockSync's clock
+		long receivedMs = ClockSync.nowMs();
 		
 		String TAG = "ResponseMessage";
 		
@@ -397,6 +1219,8 @@ public class Bluetooth {
 				this.responseType = RESPONSE_TYPE.STATE;
 			else if(parts[0].equals(RESPONSE_KEY))
 				this.responseType = RESPONSE_TYPE.RESPONSE;
+			else if(parts[0].equals(CHUNK_KEY))
+				this.responseType = RESPONSE_TYPE.CHUNK;
 			else
 				Log.d(TAG, "Got incorrect response type of '" + parts[0] + "'");
 			
@@ -404,7 +1228,7 @@ public class Bluetooth {
 			
 			this.msg = "";
 			for(int i=2;i<parts.length;i++)
-				this.msg = parts[i] + PARTS_SPLIT;
+				this.msg += parts[i] + PARTS_SPLIT;
 			
 			if(this.msg.length() > 0)
 				this.msg = this.msg.substring(0, this.msg.length() - 1);
@@ -415,7 +1239,7 @@ public class Bluetooth {
 	
 	/*
 	 * This is a thread that runs always
-	 * It constantly reads from the bluetooth connection, and whenever it gets a full msg, it will add it to the list of messages
+	 * It constantly reads from the bluetooth connection, and whenever it gets a full msg, it will hand it to whoever is waiting on it
 	 */
 	private class ReadThread extends Thread
 	{
@@ -426,7 +1250,8 @@ public class Bluetooth {
 		private InputStream inStream;
 		
 		//used to get this thread to stop from another thread without just killing it, cause thats not nice
-		private boolean continueReading = true;
+		//volatile, it's set by whoever calls Disconnect
+		private volatile boolean continueReading = true;
 		
 		//Name for logging
 		private String TAG = "ReadThread";
@@ -454,8 +1279,9 @@ public class Bluetooth {
 			//bytes read from the stream
 			int bytes;
 			
-			//a complete message.  Keep this so that we have the full string received if it's longer than a single buffer length, or the messgae is broken up for whatever other reason
-			String completeMsg = "";
+			//a complete message.  Keep this so that we have the full message received if it's longer than a single buffer length, or the messgae is broken up for whatever other reason
+			//Kept as bytes rather than a string, compressed payloads aren't text
+			ByteArrayOutputStream completeMsg = new ByteArrayOutputStream(READ_BUFFER_SIZE);
 			
 			//continueReading gets set to false when we wanna stop the thread
 			while(this.continueReading)
@@ -466,97 +1292,224 @@ public class Bluetooth {
 					bytes = this.inStream.read(buffer);
 				} catch (IOException e){
 					Log.d(TAG, "Caught IOException with message: " + e.toString());
+					bytes = -1;
+				}
+				if(bytes < 0)
+				{
+					//Disconnect closing the socket under us is expected, anything else means the link is gone
+					//and there's no point waiting for heartbeats to notice
+					if(this.continueReading)
+						linkMonitor.markDead();
 					break;
 				}
 				if(bytes > 0)
 				{
-					//for(int i=0;i<bytes;i++)
-					//{
-					//	Log.d(TAG, "Byte: " + Byte.toString(buffer[i]));
-					//}
-					
-					//get the string that was received with this call to read, add to the previous message from last time
-					String partial = new String(buffer).substring(0, bytes);
-					
-					//Log.d(TAG, "read " + Integer.toString(bytes) + " bytes - string is: " + partial);
-
-					completeMsg += partial;
-					
-					//check if we have a complete message yet
-					if(completeMsg.contains(MESSAGE_END))
+					//every MESSAGE_END finishes a message, whatever is after the last one waits for the next read
+					int start = 0;
+					for(int i=0;i<bytes;i++)
 					{
-						String[] parts = completeMsg.split(MESSAGE_END);
-
-						//this part is kinda bad, but right now we split on MESSAGE_END, the first one is guaranteed to be a complete message so we make a ResponseMessage from that
-						//The rest is just joined back together by the MESSAGE_END string, in hopes that next time we run through here it'll be split and get some ResponseMessage objects
-						completeMsg = "";
-						for(int i=1;i<parts.length;i++)
-						{
-							completeMsg += parts[i] + MESSAGE_END;
-						}	
-						
-						if(completeMsg.length() > 0)
-							completeMsg = completeMsg.substring(0, completeMsg.length() -1);
-						
-						ResponseMessage rm;
-						try
+						if(buffer[i] == MESSAGE_END_BYTE)
 						{
-						rm = new ResponseMessage(parts[0]);
-						} catch(Exception e)
-						{
-							Log.d(TAG, "Caught exception trying to create a ResponseMessage", e);
-							continue;
-						}
-						
-						//if it's a response message, another thread is waiting for this
-						if(rm.responseType == RESPONSE_TYPE.RESPONSE)
-						{
-							//add the ResponseMessage to the list of messages, making sure to lock before and unlock after to synchronize between threads
-							messagesLock.lock();
-							messages.add(rm);
-							messagesLock.unlock();
+							completeMsg.write(buffer, start, i - start);
+							handleFrame(completeMsg.toByteArray());
+							completeMsg.reset();
+							start = i + 1;
 						}
-						else if(rm.responseType == RESPONSE_TYPE.STATE)
-						{
-							//if it's a state update, we just want to set the current state to this, and then do some timing work to figure out how fast updates are coming in
-							
-							if(startStateUpdateMs < 0)
-							{
-								startStateUpdateMs = System.currentTimeMillis();
-							} 
-							else
-							{
-								updateCount+=1;
-								if(updateCount % 10 == 0)
-								{
-									if(startStateUpdateMs != null){
-										int fps = (int)(1000 * updateCount / (System.currentTimeMillis() - startStateUpdateMs));
-										Log.d(TAG, "Current updates per second: " + Integer.toString(fps));
+					}
+					completeMsg.write(buffer, start, bytes - start);
+				}
+			}
+			
+			Log.d(TAG, "Exited Reading loop");
+		}
+		
+		/*
+		 * Deal with one complete message (without the MESSAGE_END)
+		 */
+		private void handleFrame(byte[] frame)
+		{
+			//blank lines aren't messages
+			if(frame.length == 0)
+				return;
+			
+			//any frame at all means the link is alive
+			linkMonitor.onFrameReceived();
+			
+			ResponseMessage rm;
+			try
+			{
+			//compressed payloads get expanded here, the rest of the frame is always plain
+			rm = new ResponseMessage(new String(compressor.unpackFrame(frame, 2)));
+			} catch(Exception e)
+			{
+				Log.d(TAG, "Caught exception trying to create a ResponseMessage", e);
+				return;
+			}
+			
+			//a piece of a streamed response, queue it for whoever is reading the stream
+			if(rm.responseType == RESPONSE_TYPE.CHUNK)
+			{
+				ResponseStream stream = streams.get(rm.ID);
+				if(stream != null)
+					stream.onChunk(rm.msg);
+				else
+					Log.d(TAG, "Dropping chunk for a stream nobody is reading, id: " + rm.ID);
+				return;
+			}
+			
+			//the response to a streamed request ends the stream
+			if(rm.responseType == RESPONSE_TYPE.RESPONSE)
+			{
+				ResponseStream stream = streams.remove(rm.ID);
+				if(stream != null)
+				{
+					stream.end(MessageResponse.newSuccess(rm.msg));
+					return;
+				}
+			}
+			
+			//if it's a response message, another thread is waiting for this
+			if(rm.responseType == RESPONSE_TYPE.RESPONSE)
+			{
+				//hand it straight to whoever is waiting on that id, this never blocks
+				if(!responses.deliver(rm.ID, rm))
+				{
+					if(responses.wasRecentlyDelivered(rm.ID))
+					{
+						duplicateResponses.incrementAndGet();
+						Log.d(TAG, "Dropping duplicate response, id: " + rm.ID);
+					}
+					else
+					{
+						Log.d(TAG, "Dropping response nobody is waiting for, id: " + rm.ID);
+					}
+				}
+			}
+			else if(rm.responseType == RESPONSE_TYPE.STATE)
+			{
+				//if it's a state update, we just want to set the current state to this, and then do some timing work to figure out how fast updates are coming in
+				
+				//state frames use the id for the device's timestamp of the sample
+				handleStateSample(rm);
+				
+				if(startStateUpdateMs < 0)
+				{
+					startStateUpdateMs = System.currentTimeMillis();
+				} 
+				else
+				{
+					updateCount+=1;
+					if(updateCount % 10 == 0)
+					{
+						if(startStateUpdateMs != null){
+							int fps = (int)(1000 * updateCount / (System.currentTimeMillis() - startStateUpdateMs));
+							Log.d(TAG, "Current updates per second: " + Integer.toString(fps));
 
-										//update the UI about the new receive rate
-										Message msg = new Message();
-										msg.obj = fps;
-										parent.getSpeedUpdateHandler().sendMessage(msg);
-									}
-									else
-									{
-										Log.d(TAG, "startStateUpdateMs is null for some reason");
-									}
-								}
-								//Log.d(TAG, "received state");
-								current_state = rm.msg;
+							//update the UI about the new receive rate, if there is one right now
+							Handler handler = speedUpdateHandler;
+							if(handler != null)
+							{
+								Message msg = new Message();
+								msg.obj = fps;
+								handler.sendMessage(msg);
 							}
 						}
 						else
 						{
-							Log.d(TAG, "Unkown response type on message");
+							Log.d(TAG, "startStateUpdateMs is null for some reason");
 						}
-						
 					}
+					//Log.d(TAG, "received state");
+					current_state = rm.msg;
+				}
+			}
+			else
+			{
+				Log.d(TAG, "Unkown response type on message");
+			}
+		}
+	}
+	
+	/*
+	 * Turn a state frame into a StateSample and pass it on
+	 * State frames are "S:<device ms>:<state>", an id that isn't a number just means there's no timestamp
+	 */
+	private void handleStateSample(ResponseMessage rm)
+	{
+		long deviceTimeMs = -1;
+		long sampledMs = -1;
+		try
+		{
+			deviceTimeMs = Long.parseLong(rm.ID);
+			if(clockSync.isSynced())
+				sampledMs = clockSync.deviceToLocalMs(deviceTimeMs);
+		} catch(NumberFormatException e) {}
+		
+		StateSample sample = new StateSample(rm.msg, deviceTimeMs, sampledMs, rm.receivedMs);
+		currentSample = sample;
+		for(StateListener listener : stateListeners)
+			listener.onStateUpdate(sample);
+	}
+	
+	/*
+	 * Wakes up once every heartbeat interval.  If nothing has come in from the device since last time it sends
+	 * a ping, and either way tells the link monitor whether the link looked alive this interval.
+	 * While state updates are streaming the pings are never actually sent.
+	 * When the clock sync is due for a refresh, a sync exchange goes out instead, and doubles as the ping.
+	 */
+	private class HeartbeatThread extends Thread
+	{
+		private long intervalMs;
+		
+		private volatile boolean continueBeating = true;
+		
+		private String TAG = "HeartbeatThread";
+		
+		public HeartbeatThread(long intervalMs)
+		{
+			this.intervalMs = intervalMs;
+		}
+		
+		public void stopBeating()
+		{
+			this.continueBeating = false;
+			this.interrupt();
+		}
+		
+		public void run()
+		{
+			Log.d(TAG, "Started heartbeats every " + Long.toString(intervalMs) + " ms");
+			
+			while(this.continueBeating)
+			{
+				try
+				{
+					Thread.sleep(intervalMs);
+				} catch (InterruptedException e) {
+					continue;
 				}
+				
+				//either request gets one interval to come back, otherwise this interval counts as a miss
+				boolean alive = linkMonitor.heardSinceLastTick();
+				if(clockSync.isResyncDue())
+				{
+					alive = syncClockOnce(intervalMs) || linkMonitor.heardSinceLastTick();
+				}
+				else if(!alive)
+				{
+					MessageResponse response = sendMessage(HEARTBEAT_MSG, intervalMs);
+					alive = response.isSuccess() || linkMonitor.heardSinceLastTick();
+				}
+				
+				if(this.continueBeating)
+					linkMonitor.onHeartbeat(alive);
+				
+				//streams whose device never finished them, or that nobody is reading any more
+				for(ResponseStream stream : streams.values())
+					stream.expireIfIdle();
 			}
 			
-			Log.d(TAG, "Exited Reading loop");
+			Log.d(TAG, "Stopped heartbeats");
 		}
 	}
 }
@@ -0,0 +1,297 @@
+package com.fezDominoCommunication;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import android.util.Base64;
+import android.util.Log;
+
+/*
+ * Pushes a large blob (config tables, lookup data, firmware) to the microcontroller.
+ * The data is split into chunks, each sent as its own message with its index and a crc32, base64 encoded
+ * since the link protocol is text.  Up to windowSize chunks are in flight at once so we aren't paying a
+ * full round trip per chunk, and only chunks that come back bad or don't come back at all are sent again.
+ * A chunk that doesn't come back is resent with the same message id, so if it was only the response that got lost
+ * the device's answer to either copy counts.  One that comes back bad is resent as a new message.
+ *
+ * The exchange with the microcontroller looks like:
+ *   BULK_BEGIN:<chunk size>:<total bytes, -1 if unknown>    -> OK
+ *   BULK_CHUNK:<index>:<crc32 hex>:<base64 data>             -> OK, or anything else if the crc didn't match
+ *   BULK_END:<chunk count>:<total bytes>:<crc32 hex of all>  -> OK
+ * Chunks can arrive out of order or more than once, the microcontroller places them by index.
+ */
+public class BulkUpload {
+
+	/*
+	 * Implement this to hear about progress, called on the thread doing the upload
+	 */
+	public static interface ProgressListener
+	{
+		void onProgress(long bytesAcked, long totalBytes, double bytesPerSecond);
+	}
+
+	private static String BEGIN_MSG = "BULK_BEGIN";
+	private static String CHUNK_MSG = "BULK_CHUNK";
+	private static String END_MSG = "BULK_END";
+	private static String OK_RESPONSE = "OK";
+	private static String PARTS_SPLIT = ":";
+
+	String TAG = "BulkUpload";
+
+	private Bluetooth bluetooth;
+
+	//raw bytes per chunk. A multiple of 3 so the base64 has no padding
+	private int chunkSize = 192;
+	//chunks sent but not acknowledged yet
+	private int windowSize = 8;
+	//how long to wait on the oldest chunk in the window before sending it again
+	//0 means use the link's retransmit timeout, which follows the measured rtt
+	private long chunkTimeoutMs = 0;
+	//give up on the whole upload if a single chunk fails this many times
+	private int maxAttempts = 5;
+
+	/*
+	 * One piece of the blob, kept around until it's acknowledged so it can be resent
+	 */
+	private static class Chunk
+	{
+		int index;
+		byte[] data;
+		String crc;
+		int attempts = 0;
+
+		Chunk(int index, byte[] data)
+		{
+			this.index = index;
+			this.data = data;
+			CRC32 crc32 = new CRC32();
+			crc32.update(data);
+			this.crc = Long.toHexString(crc32.getValue());
+		}
+	}
+
+	private static class InFlight
+	{
+		Chunk chunk;
+		Bluetooth.PendingRequest request;
+
+		InFlight(Chunk chunk, Bluetooth.PendingRequest request)
+		{
+			this.chunk = chunk;
+			this.request = request;
+		}
+	}
+
+	public BulkUpload(Bluetooth bluetooth)
+	{
+		this.bluetooth = bluetooth;
+	}
+
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+
+	public void setWindowSize(int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+
+	public void setChunkTimeoutMs(long chunkTimeoutMs)
+	{
+		this.chunkTimeoutMs = chunkTimeoutMs;
+	}
+
+	public void setMaxAttempts(int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+	}
+
+	/*
+	 * Upload a byte array. Blocks until it's done or has failed
+	 */
+	public MessageResponse send(byte[] data, ProgressListener listener)
+	{
+		return send(new ByteArrayInputStream(data), data.length, listener);
+	}
+
+	/*
+	 * Upload everything in the stream. The stream is read a chunk at a time as the window has room,
+	 * so only about windowSize chunks are ever held in memory. Blocks until it's done or has failed
+	 */
+	public MessageResponse send(InputStream in, ProgressListener listener)
+	{
+		return send(in, -1, listener);
+	}
+
+	private MessageResponse send(InputStream in, long totalBytes, ProgressListener listener)
+	{
+		MessageResponse response = bluetooth.sendMessage(BEGIN_MSG + PARTS_SPLIT + Integer.toString(chunkSize) + PARTS_SPLIT + Long.toString(totalBytes));
+		if(!isOk(response))
+			return failed("device refused upload", response);
+
+		long startMs = System.currentTimeMillis();
+		CRC32 wholeCrc = new CRC32();
+		long bytesRead = 0;
+		long bytesAcked = 0;
+		int chunkCount = 0;
+		int resent = 0;
+		boolean endOfStream = false;
+
+		LinkedList<InFlight> window = new LinkedList<InFlight>();
+		LinkedList<Chunk> toResend = new LinkedList<Chunk>();
+
+		while(true)
+		{
+			//fill the window up, resends first so they don't fall further behind
+			while(window.size() < windowSize)
+			{
+				Chunk chunk = toResend.poll();
+				if(chunk == null && !endOfStream)
+				{
+					byte[] data;
+					try
+					{
+						data = readChunk(in);
+					} catch(IOException e) {
+						cancelAll(window);
+						return MessageResponse.newError(MessageResponse.ERROR_READ_FAILURE, e.toString());
+					}
+
+					if(data == null)
+					{
+						endOfStream = true;
+					}
+					else
+					{
+						wholeCrc.update(data);
+						bytesRead += data.length;
+						chunk = new Chunk(chunkCount++, data);
+					}
+				}
+
+				if(chunk == null)
+					break;
+
+				chunk.attempts++;
+				window.add(new InFlight(chunk, bluetooth.sendAsync(chunkMessage(chunk))));
+			}
+
+			if(window.isEmpty())
+				break;
+
+			//responses come back in about the order chunks went out, so wait on the oldest
+			//polling keeps its slot registered on a timeout, so the same request can just be sent again
+			InFlight oldest = window.removeFirst();
+			long timeoutMs = chunkTimeoutMs > 0 ? chunkTimeoutMs : bluetooth.getLinkMonitor().getRetransmitTimeoutMs();
+			response = oldest.request.poll(timeoutMs);
+
+			if(response.getErrorCode() == MessageResponse.ERROR_NOT_CONNECTED || response.getErrorCode() == MessageResponse.ERROR_SEND_FAILURE)
+			{
+				oldest.request.cancel();
+				cancelAll(window);
+				return failed("lost connection", response);
+			}
+
+			if(isOk(response))
+			{
+				bytesAcked += oldest.chunk.data.length;
+				if(listener != null)
+					listener.onProgress(bytesAcked, totalBytes, bytesPerSecond(bytesAcked, startMs));
+			}
+			else
+			{
+				if(oldest.chunk.attempts >= maxAttempts)
+				{
+					oldest.request.cancel();
+					cancelAll(window);
+					return failed("chunk " + Integer.toString(oldest.chunk.index) + " failed " + Integer.toString(oldest.chunk.attempts) + " times", response);
+				}
+
+				resent++;
+				if(response.getErrorCode() == MessageResponse.ERROR_TIMEOUT && oldest.request.retransmit())
+				{
+					//same id, to the back of the window
+					oldest.chunk.attempts++;
+					window.add(oldest);
+				}
+				else
+				{
+					//the device got it but the crc was wrong, it goes out again as a new message
+					oldest.request.cancel();
+					toResend.add(oldest.chunk);
+				}
+			}
+		}
+
+		response = bluetooth.sendMessage(END_MSG + PARTS_SPLIT + Integer.toString(chunkCount) + PARTS_SPLIT + Long.toString(bytesRead) + PARTS_SPLIT + Long.toHexString(wholeCrc.getValue()));
+		if(!isOk(response))
+			return failed("device rejected the finished upload", response);
+
+		long elapsed = System.currentTimeMillis() - startMs;
+		double rate = bytesPerSecond(bytesRead, startMs);
+		Log.d(TAG, "Uploaded " + Long.toString(bytesRead) + " bytes in " + Long.toString(elapsed) + " ms (" + Long.toString(Math.round(rate)) + " bytes/s), " + Integer.toString(resent) + " chunks resent");
+
+		return MessageResponse.newSuccess(Long.toString(bytesRead) + " bytes in " + Long.toString(elapsed) + " ms, " + Long.toString(Math.round(rate)) + " bytes/s, " + Integer.toString(resent) + " resent");
+	}
+
+	/*
+	 * Read up to chunkSize bytes, returns null once the stream is empty
+	 */
+	private byte[] readChunk(InputStream in) throws IOException
+	{
+		byte[] buffer = new byte[chunkSize];
+		int filled = 0;
+		while(filled < chunkSize)
+		{
+			int bytes = in.read(buffer, filled, chunkSize - filled);
+			if(bytes < 0)
+				break;
+			filled += bytes;
+		}
+
+		if(filled == 0)
+			return null;
+
+		if(filled == chunkSize)
+			return buffer;
+
+		byte[] result = new byte[filled];
+		System.arraycopy(buffer, 0, result, 0, filled);
+		return result;
+	}
+
+	private String chunkMessage(Chunk chunk)
+	{
+		return CHUNK_MSG + PARTS_SPLIT + Integer.toString(chunk.index) + PARTS_SPLIT + chunk.crc + PARTS_SPLIT + Base64.encodeToString(chunk.data, 0, chunk.data.length, Base64.NO_WRAP);
+	}
+
+	private boolean isOk(MessageResponse response)
+	{
+		return response.isSuccess() && OK_RESPONSE.equals(response.getResponse());
+	}
+
+	private double bytesPerSecond(long bytes, long startMs)
+	{
+		long elapsed = Math.max(1, System.currentTimeMillis() - startMs);
+		return 1000.0 * bytes / elapsed;
+	}
+
+	/*
+	 * Stop waiting on whatever is still in flight when giving up early
+	 */
+	private void cancelAll(LinkedList<InFlight> window)
+	{
+		for(InFlight inFlight : window)
+			inFlight.request.cancel();
+	}
+
+	private MessageResponse failed(String why, MessageResponse response)
+	{
+		Log.d(TAG, "Upload failed: " + why + " - code " + Integer.toString(response.getErrorCode()) + " response: " + response.getResponse());
+		return MessageResponse.newError(MessageResponse.ERROR_TRANSFER_FAILED, why);
+	}
+}
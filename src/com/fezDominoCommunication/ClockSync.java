@@ -0,0 +1,213 @@
+package com.fezDominoCommunication;
+
+/*
+ * Estimates the offset and drift between the microcontroller's clock and ours, NTP style.
+ * Each exchange gives four times:
+ *   t0 - we send the request (our clock)
+ *   t1 - device receives it (device clock)
+ *   t2 - device sends the response (device clock)
+ *   t3 - we receive the response (our clock)
+ * offset = ((t1 - t0) + (t2 - t3)) / 2 is how far ahead the device clock is, and
+ * delay = (t3 - t0) - (t2 - t1) is the round trip without the device's processing time.
+ * Queueing on one leg and not the other throws the offset off by up to half the delay, so only samples with
+ * a delay close to the smallest one are used.  The offset comes from the newest of those, so it's never
+ * extrapolated far, and drift is the slope of offset against our clock over all of them.
+ */
+public class ClockSync {
+
+	//how many recent exchanges to keep
+	private static int HISTORY_SIZE = 16;
+	//the offset is trusted for this long before another exchange should be done
+	private static long RESYNC_INTERVAL_MS = 30000;
+	//need at least this much time between the first and last sample before guessing at drift
+	private static long MIN_DRIFT_SPAN_MS = 5000;
+	//a sample is used if its delay is within this much of the smallest, or half the smallest if that's more
+	private static long DELAY_MARGIN_MS = 10;
+
+	//circular buffer of recent exchanges
+	private long[] sampleLocalMs = new long[HISTORY_SIZE];
+	private double[] sampleOffsetMs = new double[HISTORY_SIZE];
+	private long[] sampleDelayMs = new long[HISTORY_SIZE];
+	private int sampleCount = 0;
+	private int nextSample = 0;
+
+	//best estimate so far, offsetMs was measured at baseLocalMs and drifts from there
+	private double offsetMs = 0;
+	private long baseLocalMs = 0;
+	private double drift = 0;
+
+	//breakdown of the latest exchange, with the offset taken out
+	private long lastUplinkMs = -1;
+	private long lastProcessingMs = -1;
+	private long lastDownlinkMs = -1;
+
+	private long lastSyncMs = -1;
+
+	/*
+	 * Our clock. Monotonic, so it doesn't jump when the phone's wall clock gets set
+	 */
+	public static long nowMs()
+	{
+		return System.nanoTime() / 1000000;
+	}
+
+	/*
+	 * Start over, used when a new connection is made since the device may have been reset
+	 */
+	public synchronized void reset()
+	{
+		sampleCount = 0;
+		nextSample = 0;
+		offsetMs = 0;
+		baseLocalMs = 0;
+		drift = 0;
+		lastUplinkMs = -1;
+		lastProcessingMs = -1;
+		lastDownlinkMs = -1;
+		lastSyncMs = -1;
+	}
+
+	/*
+	 * Add the four times from one exchange, see the top of the class
+	 */
+	public synchronized void addExchange(long t0, long t1, long t2, long t3)
+	{
+		double offset = ((t1 - t0) + (t2 - t3)) / 2.0;
+		long delay = (t3 - t0) - (t2 - t1);
+
+		sampleLocalMs[nextSample] = (t0 + t3) / 2;
+		sampleOffsetMs[nextSample] = offset;
+		sampleDelayMs[nextSample] = delay;
+		nextSample = (nextSample + 1) % HISTORY_SIZE;
+		if(sampleCount < HISTORY_SIZE)
+			sampleCount++;
+
+		long minDelay = Long.MAX_VALUE;
+		for(int i=0;i<sampleCount;i++)
+			minDelay = Math.min(minDelay, sampleDelayMs[i]);
+		long maxDelay = minDelay + Math.max(DELAY_MARGIN_MS, minDelay / 2);
+
+		//offset from the newest sample that's close to the best delay, drift from all of those
+		int newest = -1;
+		for(int i=0;i<sampleCount;i++)
+		{
+			if(sampleDelayMs[i] <= maxDelay && (newest < 0 || sampleLocalMs[i] > sampleLocalMs[newest]))
+				newest = i;
+		}
+		offsetMs = sampleOffsetMs[newest];
+		baseLocalMs = sampleLocalMs[newest];
+		drift = fitDrift(maxDelay);
+
+		lastUplinkMs = Math.round(t1 - offset - t0);
+		lastProcessingMs = t2 - t1;
+		lastDownlinkMs = Math.round(t3 - (t2 - offset));
+		lastSyncMs = t3;
+	}
+
+	/*
+	 * Least squares slope of offset against our clock over the samples with at most maxDelay.
+	 * Until those cover enough time to mean anything the drift found so far is kept (0 after a reset)
+	 */
+	private double fitDrift(long maxDelay)
+	{
+		int used = 0;
+		long minLocal = Long.MAX_VALUE;
+		long maxLocal = Long.MIN_VALUE;
+		double meanLocal = 0;
+		double meanOffset = 0;
+		for(int i=0;i<sampleCount;i++)
+		{
+			if(sampleDelayMs[i] > maxDelay)
+				continue;
+			used++;
+			minLocal = Math.min(minLocal, sampleLocalMs[i]);
+			maxLocal = Math.max(maxLocal, sampleLocalMs[i]);
+			meanLocal += sampleLocalMs[i];
+			meanOffset += sampleOffsetMs[i];
+		}
+
+		if(used < 2 || maxLocal - minLocal < MIN_DRIFT_SPAN_MS)
+			return drift;
+
+		meanLocal /= used;
+		meanOffset /= used;
+
+		double covariance = 0;
+		double variance = 0;
+		for(int i=0;i<sampleCount;i++)
+		{
+			if(sampleDelayMs[i] > maxDelay)
+				continue;
+			double dx = sampleLocalMs[i] - meanLocal;
+			covariance += dx * (sampleOffsetMs[i] - meanOffset);
+			variance += dx * dx;
+		}
+
+		return covariance / variance;
+	}
+
+	/*
+	 * Whether there's been at least one exchange since the last reset
+	 */
+	public synchronized boolean isSynced()
+	{
+		return sampleCount > 0;
+	}
+
+	/*
+	 * Whether it's time for another exchange
+	 */
+	public synchronized boolean isResyncDue()
+	{
+		return lastSyncMs < 0 || nowMs() - lastSyncMs > RESYNC_INTERVAL_MS;
+	}
+
+	/*
+	 * How far ahead of our clock the device clock is at the given time on our clock
+	 */
+	public synchronized double getOffsetMs(long localMs)
+	{
+		return offsetMs + drift * (localMs - baseLocalMs);
+	}
+
+	/*
+	 * Convert a time on the device's clock to ours
+	 */
+	public synchronized long deviceToLocalMs(long deviceMs)
+	{
+		//the offset only changes by drift per ms, so using the device time as a stand in for ours is close enough
+		return Math.round(deviceMs - getOffsetMs(deviceMs - Math.round(offsetMs)));
+	}
+
+	/*
+	 * Drift in parts per million, positive means the device clock runs fast
+	 */
+	public synchronized double getDriftPpm()
+	{
+		return drift * 1000000;
+	}
+
+	/*
+	 * Time from us sending the latest sync request to the device getting it, or -1 if there hasn't been one
+	 */
+	public synchronized long getLastUplinkMs()
+	{
+		return lastUplinkMs;
+	}
+
+	/*
+	 * Time the device spent on the latest sync request before answering
+	 */
+	public synchronized long getLastProcessingMs()
+	{
+		return lastProcessingMs;
+	}
+
+	/*
+	 * Time from the device sending the latest sync response to us getting it
+	 */
+	public synchronized long getLastDownlinkMs()
+	{
+		return lastDownlinkMs;
+	}
+}
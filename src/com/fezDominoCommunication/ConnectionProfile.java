@@ -0,0 +1,60 @@
+package com.fezDominoCommunication;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/*
+ * What we learned about the last device we connected to, saved so the next run (or reconnect) can skip work.
+ * The RFCOMM channel is the big one: knowing it means we can open the socket straight away,
+ * instead of doing an SDP lookup to find the serial port service first.
+ */
+public class ConnectionProfile {
+
+	private static String PREFS_NAME = "fezDominoConnection";
+	private static String ADDRESS_KEY = "address";
+	private static String CHANNEL_KEY = "channel";
+
+	private SharedPreferences prefs;
+
+	private String address;
+	//-1 when we don't know it
+	private int channel;
+
+	public ConnectionProfile(Context context)
+	{
+		this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		this.address = prefs.getString(ADDRESS_KEY, null);
+		this.channel = prefs.getInt(CHANNEL_KEY, -1);
+	}
+
+	/*
+	 * Address of the last device we connected to, null if there hasn't been one
+	 */
+	public synchronized String getAddress()
+	{
+		return address;
+	}
+
+	/*
+	 * RFCOMM channel for address, or -1 if it's a different device or we never found out
+	 */
+	public synchronized int getChannel(String address)
+	{
+		if(this.address == null || !this.address.equals(address))
+			return -1;
+		return channel;
+	}
+
+	/*
+	 * Remember a successful connection. channel can be -1 if we couldn't tell what it was
+	 */
+	public synchronized void save(String address, int channel)
+	{
+		if(address.equals(this.address) && channel == this.channel)
+			return;
+
+		this.address = address;
+		this.channel = channel;
+		prefs.edit().putString(ADDRESS_KEY, address).putInt(CHANNEL_KEY, channel).commit();
+	}
+}
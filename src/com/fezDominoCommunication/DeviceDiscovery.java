@@ -0,0 +1,496 @@
+package com.fezDominoCommunication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/*
+ * Finds FEZ Domino boards among the bonded (and optionally nearby) devices.
+ * Each candidate gets probed: connect, send a few PINGs, and check the answers look like our protocol.
+ * Probes run a few at a time in parallel, each with a time limit, so one dead device can't hold everything up.
+ * Results are ranked boards first, then fastest round trip, then strongest signal, and cached between runs so
+ * devices that answered with something other than our protocol don't get probed again for a while.
+ * A device we couldn't reach (off, out of range, busy with another phone) isn't skipped, it might be a board.
+ */
+public class DeviceDiscovery {
+
+	/*
+	 * What we found out about one device
+	 */
+	public static class ProbeResult
+	{
+		String name;
+		String address;
+		//answered our protocol.  For a device that wasn't reachable, whether it did last time
+		boolean isBoard;
+		//false if we couldn't connect or it never answered, as opposed to answering with something else
+		boolean reachable;
+		//best of the probe pings, -1 if it never answered
+		long rttMs;
+		//from discovery, NO_RSSI if the device wasn't seen in a scan
+		int rssi;
+		//true if this came from the cache rather than a probe just now
+		boolean cached;
+
+		ProbeResult(String name, String address, boolean isBoard, boolean reachable, long rttMs, int rssi, boolean cached)
+		{
+			this.name = name;
+			this.address = address;
+			this.isBoard = isBoard;
+			this.reachable = reachable;
+			this.rttMs = rttMs;
+			this.rssi = rssi;
+			this.cached = cached;
+		}
+
+		public String getName()
+		{
+			return this.name;
+		}
+
+		public String getAddress()
+		{
+			return this.address;
+		}
+
+		public boolean isBoard()
+		{
+			return this.isBoard;
+		}
+
+		public boolean isReachable()
+		{
+			return this.reachable;
+		}
+
+		public long getRttMs()
+		{
+			return this.rttMs;
+		}
+
+		public int getRssi()
+		{
+			return this.rssi;
+		}
+
+		public boolean isCached()
+		{
+			return this.cached;
+		}
+
+		public String toString()
+		{
+			String result = name + " - " + address;
+			if(!reachable)
+				return result + (isBoard ? " (board, unreachable)" : " (unreachable)");
+			if(!isBoard)
+				return result + " (not a board)";
+			result += " (" + Long.toString(rttMs) + " ms";
+			if(rssi != NO_RSSI)
+				result += ", " + Integer.toString(rssi) + " dBm";
+			return result + ")";
+		}
+	}
+
+	public static int NO_RSSI = Short.MIN_VALUE;
+
+	//bluetooth radios don't like lots of connections being set up at once
+	private static int MAX_PARALLEL_PROBES = 3;
+	//one probe, connect included, gets this long before its socket is closed on it
+	private static long PROBE_TIMEOUT_MS = 6000;
+	//pings per probe, the fastest one counts
+	private static int PROBE_PINGS = 3;
+	//lines of something else (state frames left running) to skip while waiting for a ping's answer
+	private static int MAX_SKIPPED_LINES = 20;
+	//how long a scan for unbonded devices gets
+	private static long SCAN_TIMEOUT_MS = 12000;
+	//devices that answered with something other than our protocol aren't probed again for this long
+	private static long NOT_A_BOARD_CACHE_MS = 24 * 60 * 60 * 1000L;
+
+	private static String PROBE_MSG = "PING";
+	private static String PREFS_NAME = "fezDominoDiscovery";
+
+	String TAG = "DeviceDiscovery";
+
+	private Context context;
+	private Bluetooth bluetooth;
+	private BluetoothAdapter bluetoothAdapter;
+	private SharedPreferences cache;
+
+	public DeviceDiscovery(Context context, Bluetooth bluetooth)
+	{
+		this.context = context;
+		this.bluetooth = bluetooth;
+		this.bluetoothAdapter = bluetooth.getAdapter();
+		this.cache = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/*
+	 * What the last run found, ranked, without probing anything. Instant, good for showing straight away
+	 */
+	public List<ProbeResult> getCachedResults()
+	{
+		List<ProbeResult> results = new ArrayList<ProbeResult>();
+		for(BluetoothDevice device : bluetoothAdapter.getBondedDevices())
+		{
+			ProbeResult result = readCache(device);
+			if(result != null)
+				results.add(result);
+		}
+		rank(results);
+		return results;
+	}
+
+	/*
+	 * Probe the bonded devices, and ones found by scanning if includeNearby, and return them ranked.
+	 * Blocks, so don't call it on the UI thread. Takes about PROBE_TIMEOUT_MS per MAX_PARALLEL_PROBES devices
+	 * at worst, much less when devices answer or are known not to be boards.
+	 * includeNearby adds up to SCAN_TIMEOUT_MS of scanning before any probing, so only ask for it when the
+	 * board isn't bonded yet.  Probing during the scan would be slowed right down by it
+	 */
+	public List<ProbeResult> discover(boolean includeNearby)
+	{
+		long start = System.currentTimeMillis();
+
+		//address -> rssi, NO_RSSI for bonded devices that didn't show up in a scan
+		Map<String, BluetoothDevice> candidates = new HashMap<String, BluetoothDevice>();
+		Map<String, Integer> rssis = new HashMap<String, Integer>();
+		for(BluetoothDevice device : bluetoothAdapter.getBondedDevices())
+			candidates.put(device.getAddress(), device);
+		if(includeNearby)
+			scan(candidates, rssis);
+
+		//discovery would slow every probe right down
+		bluetoothAdapter.cancelDiscovery();
+
+		List<ProbeResult> results = new ArrayList<ProbeResult>();
+		List<BluetoothDevice> toProbe = new ArrayList<BluetoothDevice>();
+		String connectedAddress = bluetooth.getConnectedAddress();
+		for(BluetoothDevice device : candidates.values())
+		{
+			int rssi = rssis.containsKey(device.getAddress()) ? rssis.get(device.getAddress()) : NO_RSSI;
+
+			//can't open a second connection to the board we're already talking to, but we know all about it
+			if(device.getAddress().equals(connectedAddress))
+			{
+				long rtt = Math.round(bluetooth.getLinkMonitor().getSmoothedRttMs());
+				results.add(new ProbeResult(device.getName(), device.getAddress(), true, true, rtt, rssi, false));
+				continue;
+			}
+
+			ProbeResult cached = readCache(device);
+			if(cached != null && cached.reachable && !cached.isBoard && System.currentTimeMillis() - cache.getLong(device.getAddress() + ".time", 0) < NOT_A_BOARD_CACHE_MS)
+			{
+				results.add(cached);
+				continue;
+			}
+
+			toProbe.add(device);
+		}
+
+		//boards we already know about go first, so they're done even if the rest are slow
+		final Map<String, ProbeResult> known = new HashMap<String, ProbeResult>();
+		for(BluetoothDevice device : toProbe)
+		{
+			ProbeResult cached = readCache(device);
+			if(cached != null)
+				known.put(device.getAddress(), cached);
+		}
+		Collections.sort(toProbe, new Comparator<BluetoothDevice>() {
+
+			public int compare(BluetoothDevice a, BluetoothDevice b) {
+				boolean aBoard = known.containsKey(a.getAddress()) && known.get(a.getAddress()).isBoard;
+				boolean bBoard = known.containsKey(b.getAddress()) && known.get(b.getAddress()).isBoard;
+				return aBoard == bBoard ? 0 : (aBoard ? -1 : 1);
+			}
+		});
+
+		ExecutorService probes = Executors.newFixedThreadPool(MAX_PARALLEL_PROBES);
+		ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+		List<Future<ProbeResult>> futures = new ArrayList<Future<ProbeResult>>();
+		for(BluetoothDevice device : toProbe)
+		{
+			int rssi = rssis.containsKey(device.getAddress()) ? rssis.get(device.getAddress()) : NO_RSSI;
+			boolean wasBoard = known.containsKey(device.getAddress()) && known.get(device.getAddress()).isBoard;
+			futures.add(probes.submit(new Probe(device, rssi, wasBoard, watchdog)));
+		}
+
+		for(int i=0;i<futures.size();i++)
+		{
+			BluetoothDevice device = toProbe.get(i);
+			ProbeResult result;
+			try
+			{
+				result = futures.get(i).get();
+			} catch(Exception e) {
+				Log.d(TAG, "Probe of " + device.getAddress() + " failed: " + e.toString());
+				result = new ProbeResult(device.getName(), device.getAddress(), false, false, -1, NO_RSSI, false);
+			}
+			writeCache(result);
+			results.add(result);
+		}
+
+		probes.shutdownNow();
+		watchdog.shutdownNow();
+
+		rank(results);
+		Log.d(TAG, "Probed " + Integer.toString(toProbe.size()) + " of " + Integer.toString(candidates.size()) + " devices in " + Long.toString(System.currentTimeMillis() - start) + " ms");
+		return results;
+	}
+
+	/*
+	 * Boards we reached first, then boards we couldn't, then devices we couldn't reach that might be boards,
+	 * then ones that definitely aren't.  Within each, lowest rtt then strongest signal
+	 */
+	private void rank(List<ProbeResult> results)
+	{
+		Collections.sort(results, new Comparator<ProbeResult>() {
+
+			public int compare(ProbeResult a, ProbeResult b) {
+				if(group(a) != group(b))
+					return group(a) - group(b);
+				if(a.rttMs != b.rttMs)
+				{
+					//unknown rtt goes last
+					if(a.rttMs < 0)
+						return 1;
+					if(b.rttMs < 0)
+						return -1;
+					return a.rttMs < b.rttMs ? -1 : 1;
+				}
+				return b.rssi - a.rssi;
+			}
+
+			private int group(ProbeResult result) {
+				if(result.isBoard)
+					return result.reachable ? 0 : 1;
+				return result.reachable ? 3 : 2;
+			}
+		});
+	}
+
+	/*
+	 * Run a scan for nearby devices, adding what it finds to candidates and their signal strength to rssis
+	 */
+	private void scan(final Map<String, BluetoothDevice> candidates, final Map<String, Integer> rssis)
+	{
+		final CountDownLatch finished = new CountDownLatch(1);
+		BroadcastReceiver receiver = new BroadcastReceiver() {
+
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if(BluetoothDevice.ACTION_FOUND.equals(intent.getAction()))
+				{
+					BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+					short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short)NO_RSSI);
+					synchronized(candidates)
+					{
+						candidates.put(device.getAddress(), device);
+						rssis.put(device.getAddress(), (int)rssi);
+					}
+				}
+				else if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction()))
+				{
+					finished.countDown();
+				}
+			}
+		};
+
+		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+		context.registerReceiver(receiver, filter);
+		try
+		{
+			if(bluetoothAdapter.startDiscovery())
+				finished.await(SCAN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Log.d(TAG, "Interrupted while scanning");
+		} finally {
+			bluetoothAdapter.cancelDiscovery();
+			context.unregisterReceiver(receiver);
+		}
+	}
+
+	/*
+	 * Connects to one device and sees if it talks our protocol
+	 */
+	private class Probe implements Callable<ProbeResult>
+	{
+		private BluetoothDevice device;
+		private int rssi;
+		//what the cache says, kept if it can't be reached this time
+		private boolean wasBoard;
+		//lines that weren't our protocol at all
+		private int strayLines = 0;
+		private ScheduledExecutorService watchdog;
+
+		Probe(BluetoothDevice device, int rssi, boolean wasBoard, ScheduledExecutorService watchdog)
+		{
+			this.device = device;
+			this.rssi = rssi;
+			this.wasBoard = wasBoard;
+			this.watchdog = watchdog;
+		}
+
+		public ProbeResult call()
+		{
+			final BluetoothSocket socket;
+			try
+			{
+				socket = device.createRfcommSocketToServiceRecord(Bluetooth.SPP_UUID);
+			} catch(IOException e) {
+				return unreachable(e);
+			}
+
+			//bluetooth socket reads and connects can't time out on their own, closing the socket unblocks them
+			ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+
+				public void run() {
+					try
+					{
+						socket.close();
+					} catch(IOException e) {}
+				}
+			}, PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+			try
+			{
+				socket.connect();
+				InputStream in = socket.getInputStream();
+				OutputStream out = socket.getOutputStream();
+
+				long bestRtt = Long.MAX_VALUE;
+				for(int i=0;i<PROBE_PINGS;i++)
+				{
+					String id = Integer.toString(i + 1);
+					long start = System.currentTimeMillis();
+					out.write((id + ":" + PROBE_MSG + "\n").getBytes());
+
+					if(!awaitResponse(in, id))
+						return notABoard();
+					bestRtt = Math.min(bestRtt, System.currentTimeMillis() - start);
+				}
+
+				Log.d(TAG, "Found a board at " + device.getAddress() + ", rtt " + Long.toString(bestRtt) + " ms");
+				return new ProbeResult(device.getName(), device.getAddress(), true, true, bestRtt, rssi, false);
+			} catch(IOException e) {
+				//connect failed, the link dropped, or the watchdog closed the socket on us
+				return unreachable(e);
+			} finally {
+				timeout.cancel(false);
+				try
+				{
+					socket.close();
+				} catch(IOException e) {}
+			}
+		}
+
+		/*
+		 * Read lines until the response to id shows up. Returns false once it's clear the device talks something
+		 * else, it's not a board.  Throws if the device stops talking, that says nothing either way
+		 */
+		private boolean awaitResponse(InputStream in, String id) throws IOException
+		{
+			for(int skipped=0;skipped<=MAX_SKIPPED_LINES;skipped++)
+			{
+				String line = readLine(in);
+				if(line == null)
+					throw new IOException("connection closed");
+				if(line.startsWith("R:" + id + ":"))
+					return true;
+
+				//blank lines aren't messages, same as the ReadThread treats them
+				if(line.trim().length() == 0)
+					continue;
+				//one of our frames that isn't the answer: state left running, a stream chunk, an older request's response
+				if(line.startsWith("S:") || line.startsWith("C:") || line.startsWith("R:"))
+					continue;
+
+				//the first stray line may be the tail of a frame the board was halfway through when we connected
+				strayLines++;
+				if(strayLines > 1)
+					return false;
+			}
+			throw new IOException("no answer among " + Integer.toString(MAX_SKIPPED_LINES) + " frames");
+		}
+
+		private String readLine(InputStream in) throws IOException
+		{
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while((b = in.read()) >= 0)
+			{
+				if(b == '\n')
+					return new String(line.toByteArray());
+				line.write(b);
+			}
+			return null;
+		}
+
+		/*
+		 * It answered, but not with our protocol
+		 */
+		private ProbeResult notABoard()
+		{
+			return new ProbeResult(device.getName(), device.getAddress(), false, true, -1, rssi, false);
+		}
+
+		/*
+		 * Couldn't find out, so it's remembered as whatever it was last time
+		 */
+		private ProbeResult unreachable(IOException e)
+		{
+			Log.d(TAG, "Couldn't reach " + device.getAddress() + ": " + e.toString());
+			return new ProbeResult(device.getName(), device.getAddress(), wasBoard, false, -1, rssi, false);
+		}
+	}
+
+	private ProbeResult readCache(BluetoothDevice device)
+	{
+		String address = device.getAddress();
+		if(cache.getLong(address + ".time", 0) == 0)
+			return null;
+
+		boolean isBoard = cache.getInt(address + ".board", 0) == 1;
+		//entries from before reachable was recorded counted any failure as not a board, so those get probed again
+		boolean reachable = cache.getInt(address + ".reachable", isBoard ? 1 : 0) == 1;
+		return new ProbeResult(device.getName(), address, isBoard, reachable, cache.getLong(address + ".rtt", -1), cache.getInt(address + ".rssi", NO_RSSI), true);
+	}
+
+	private void writeCache(ProbeResult result)
+	{
+		String address = result.address;
+		cache.edit()
+			.putLong(address + ".time", System.currentTimeMillis())
+			.putInt(address + ".board", result.isBoard ? 1 : 0)
+			.putInt(address + ".reachable", result.reachable ? 1 : 0)
+			.putLong(address + ".rtt", result.rttMs)
+			.putInt(address + ".rssi", result.rssi)
+			.commit();
+	}
+}
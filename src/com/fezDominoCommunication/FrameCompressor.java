@@ -0,0 +1,341 @@
+package com.fezDominoCommunication;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Small compressor for frame payloads, simple enough for the microcontroller to decode in a few lines.
+ * A compressed payload starts with COMPRESSED_FLAG, plain payloads are text so they never start with it.
+ * After the flag, each byte is one of:
+ *   0x20-0x7F          that byte, as is
+ *   0x80-0xFF          DICTIONARY entry (byte - 0x80)
+ *   0x02 <len> <byte>  <byte> repeated len times
+ *   0x03 <byte>        that byte as is, for bytes that aren't printable text
+ *   0x04 <dist> <len>  copy len bytes starting dist bytes back in the output
+ * The output never contains MESSAGE_END ('\n'), so framing still works.  Lengths and distances are 1 byte,
+ * so back references only reach 255 bytes, which is plenty for the frames we send and keeps the decoder's
+ * buffer small.
+ *
+ * Also keeps count of how much it saved and how long it took, so we can tell if it's worth it.
+ */
+public class FrameCompressor {
+
+	public static byte COMPRESSED_FLAG = 0x01;
+
+	private static byte RUN = 0x02;
+	private static byte LITERAL = 0x03;
+	private static byte COPY = 0x04;
+
+	private static byte NEWLINE = '\n';
+
+	//shortest run or copy that's worth the 3 bytes it takes
+	private static int MIN_MATCH = 4;
+	private static int MAX_MATCH = 255;
+	private static int MAX_DISTANCE = 255;
+
+	//tokens that show up a lot in our frames, the microcontroller has the same table
+	//at most 128, longest first so the longest one wins when they overlap
+	private static String[] DICTIONARY = {
+		"START_STATE",
+		"STOP_STATE",
+		"BULK_CHUNK",
+		"BULK_BEGIN",
+		"COMPRESS",
+		"BULK_END",
+		"ERROR",
+		"PING",
+		"TIME",
+		"0.00",
+		"000",
+		"OK",
+		", ",
+		"0.",
+		"-0",
+		"00",
+		".0",
+		"0,",
+		"1,",
+		"-1",
+	};
+	private static byte[][] DICTIONARY_BYTES = new byte[DICTIONARY.length][];
+	static
+	{
+		for(int i=0;i<DICTIONARY.length;i++)
+			DICTIONARY_BYTES[i] = DICTIONARY[i].getBytes();
+	}
+
+	private final AtomicLong framesCompressed = new AtomicLong(0);
+	private final AtomicLong framesNotWorthIt = new AtomicLong(0);
+	private final AtomicLong bytesBeforeCompression = new AtomicLong(0);
+	private final AtomicLong bytesAfterCompression = new AtomicLong(0);
+	private final AtomicLong compressNanos = new AtomicLong(0);
+	private final AtomicLong framesDecompressed = new AtomicLong(0);
+	private final AtomicLong bytesBeforeDecompression = new AtomicLong(0);
+	private final AtomicLong bytesAfterDecompression = new AtomicLong(0);
+	private final AtomicLong decompressNanos = new AtomicLong(0);
+
+	/*
+	 * Returns the flag followed by the compressed payload, or null if compressing didn't make it smaller
+	 */
+	public byte[] pack(byte[] payload)
+	{
+		long start = System.nanoTime();
+		byte[] compressed = compress(payload);
+		compressNanos.addAndGet(System.nanoTime() - start);
+
+		if(compressed.length + 1 >= payload.length)
+		{
+			framesNotWorthIt.incrementAndGet();
+			return null;
+		}
+
+		framesCompressed.incrementAndGet();
+		bytesBeforeCompression.addAndGet(payload.length);
+		bytesAfterCompression.addAndGet(compressed.length + 1);
+
+		byte[] packed = new byte[compressed.length + 1];
+		packed[0] = COMPRESSED_FLAG;
+		System.arraycopy(compressed, 0, packed, 1, compressed.length);
+		return packed;
+	}
+
+	/*
+	 * Takes a whole frame (no MESSAGE_END) with headerParts ':' separated parts before the payload.
+	 * If the payload is compressed, returns the frame with it decompressed, otherwise the frame as is
+	 */
+	public byte[] unpackFrame(byte[] frame, int headerParts)
+	{
+		int payloadStart = 0;
+		for(int found=0;found<headerParts;found++)
+		{
+			while(payloadStart < frame.length && frame[payloadStart] != ':')
+				payloadStart++;
+			payloadStart++;
+		}
+
+		if(payloadStart >= frame.length || frame[payloadStart] != COMPRESSED_FLAG)
+			return frame;
+
+		long start = System.nanoTime();
+		byte[] payload = decompress(frame, payloadStart + 1, frame.length - payloadStart - 1);
+		decompressNanos.addAndGet(System.nanoTime() - start);
+
+		framesDecompressed.incrementAndGet();
+		bytesBeforeDecompression.addAndGet(frame.length - payloadStart);
+		bytesAfterDecompression.addAndGet(payload.length);
+
+		byte[] result = new byte[payloadStart + payload.length];
+		System.arraycopy(frame, 0, result, 0, payloadStart);
+		System.arraycopy(payload, 0, result, payloadStart, payload.length);
+		return result;
+	}
+
+	/*
+	 * payload can't contain '\n', it's a frame payload
+	 */
+	byte[] compress(byte[] in)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(in.length);
+		int pos = 0;
+		while(pos < in.length)
+		{
+			//dictionary entries take 1 byte, so they beat a copy of the same length
+			int dictionaryIndex = -1;
+			int dictionaryLength = 0;
+			for(int i=0;i<DICTIONARY_BYTES.length;i++)
+			{
+				if(DICTIONARY_BYTES[i].length > dictionaryLength && matches(in, pos, DICTIONARY_BYTES[i]))
+				{
+					dictionaryIndex = i;
+					dictionaryLength = DICTIONARY_BYTES[i].length;
+				}
+			}
+
+			int run = 1;
+			while(pos + run < in.length && run < MAX_MATCH && in[pos + run] == in[pos])
+				run++;
+			//a length byte can't be '\n'
+			if(run == NEWLINE)
+				run--;
+
+			int copyDistance = 0;
+			int copyLength = 0;
+			for(int distance=1;distance<=Math.min(MAX_DISTANCE, pos);distance++)
+			{
+				//a distance byte can't be '\n' either
+				if(distance == NEWLINE)
+					continue;
+
+				int length = 0;
+				while(pos + length < in.length && length < MAX_MATCH && in[pos + length - distance] == in[pos + length])
+					length++;
+				if(length > copyLength)
+				{
+					copyLength = length;
+					copyDistance = distance;
+				}
+			}
+			if(copyLength == NEWLINE)
+				copyLength--;
+
+			//pick whatever covers the most input for its output bytes
+			if(dictionaryIndex >= 0 && dictionaryLength + 2 >= Math.max(run, copyLength))
+			{
+				out.write(0x80 + dictionaryIndex);
+				pos += dictionaryLength;
+			}
+			else if(run >= MIN_MATCH && run >= copyLength)
+			{
+				out.write(RUN);
+				out.write(run);
+				out.write(in[pos]);
+				pos += run;
+			}
+			else if(copyLength >= MIN_MATCH)
+			{
+				out.write(COPY);
+				out.write(copyDistance);
+				out.write(copyLength);
+				pos += copyLength;
+			}
+			else
+			{
+				int b = in[pos] & 0xFF;
+				if(b < 0x20 || b >= 0x80)
+					out.write(LITERAL);
+				out.write(b);
+				pos++;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	byte[] decompress(byte[] in, int offset, int length)
+	{
+		//copies read back from what's been written so far
+		byte[] written = new byte[length * 4 + 16];
+		int writtenLength = 0;
+
+		int pos = offset;
+		int end = offset + length;
+		while(pos < end)
+		{
+			int b = in[pos++] & 0xFF;
+			byte[] piece;
+			if(b >= 0x80)
+			{
+				piece = DICTIONARY_BYTES[b - 0x80];
+			}
+			else if(b == RUN)
+			{
+				int run = in[pos++] & 0xFF;
+				piece = new byte[run];
+				for(int i=0;i<run;i++)
+					piece[i] = in[pos];
+				pos++;
+			}
+			else if(b == LITERAL)
+			{
+				piece = new byte[]{in[pos++]};
+			}
+			else if(b == COPY)
+			{
+				int distance = in[pos++] & 0xFF;
+				int copyLength = in[pos++] & 0xFF;
+				piece = new byte[copyLength];
+				//byte at a time, a copy can overlap what it's producing
+				for(int i=0;i<copyLength;i++)
+				{
+					int from = writtenLength + i - distance;
+					piece[i] = from < writtenLength ? written[from] : piece[from - writtenLength];
+				}
+			}
+			else
+			{
+				piece = new byte[]{(byte)b};
+			}
+
+			if(writtenLength + piece.length > written.length)
+			{
+				byte[] bigger = new byte[(writtenLength + piece.length) * 2];
+				System.arraycopy(written, 0, bigger, 0, writtenLength);
+				written = bigger;
+			}
+			System.arraycopy(piece, 0, written, writtenLength, piece.length);
+			writtenLength += piece.length;
+		}
+
+		byte[] result = new byte[writtenLength];
+		System.arraycopy(written, 0, result, 0, writtenLength);
+		return result;
+	}
+
+	private static boolean matches(byte[] in, int pos, byte[] token)
+	{
+		if(pos + token.length > in.length)
+			return false;
+		for(int i=0;i<token.length;i++)
+		{
+			if(in[pos + i] != token[i])
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Compressed size / original size of what we've sent, 1 if nothing has been compressed yet
+	 */
+	public double getSendRatio()
+	{
+		long before = bytesBeforeCompression.get();
+		return before == 0 ? 1 : (double)bytesAfterCompression.get() / before;
+	}
+
+	/*
+	 * Compressed size / original size of what we've received, 1 if nothing compressed has come in yet
+	 */
+	public double getReceiveRatio()
+	{
+		long after = bytesAfterDecompression.get();
+		return after == 0 ? 1 : (double)bytesBeforeDecompression.get() / after;
+	}
+
+	public long getFramesCompressed()
+	{
+		return framesCompressed.get();
+	}
+
+	/*
+	 * Frames over the threshold that didn't get any smaller, so went out plain
+	 */
+	public long getFramesNotWorthIt()
+	{
+		return framesNotWorthIt.get();
+	}
+
+	public long getFramesDecompressed()
+	{
+		return framesDecompressed.get();
+	}
+
+	/*
+	 * Total time spent compressing, including frames that ended up not worth it
+	 */
+	public long getCompressNanos()
+	{
+		return compressNanos.get();
+	}
+
+	public long getDecompressNanos()
+	{
+		return decompressNanos.get();
+	}
+
+	/*
+	 * Bytes that didn't have to go over the link, both directions
+	 */
+	public long getBytesSaved()
+	{
+		return (bytesBeforeCompression.get() - bytesAfterCompression.get()) + (bytesAfterDecompression.get() - bytesBeforeDecompression.get());
+	}
+}
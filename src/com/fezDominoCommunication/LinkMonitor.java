@@ -0,0 +1,212 @@
+package com.fezDominoCommunication;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Keeps track of how healthy the bluetooth link actually is.
+ * Round trip times come from every request that gets a response (heartbeat pings and normal messages),
+ * and get smoothed the same way TCP does it (RFC 6298).  Missed heartbeats feed a smoothed loss rate.
+ * Any frame received from the device counts as proof that the link is alive, so while state updates are
+ * streaming in no pings have to be sent at all.
+ */
+public class LinkMonitor {
+
+	public static enum LINK_STATE{HEALTHY, DEGRADED, DEAD};
+
+	/*
+	 * Implement this to get told when the link state changes
+	 * Called from the heartbeat thread, so don't touch the UI directly from it
+	 */
+	public static interface LinkStateListener
+	{
+		void onLinkStateChanged(LINK_STATE state, LinkMonitor monitor);
+	}
+
+	//gains for the smoothed rtt and rtt variance, same as TCP uses
+	private static double RTT_ALPHA = 0.125;
+	private static double RTT_BETA = 0.25;
+	//gain for the smoothed loss rate
+	private static double LOSS_GAIN = 0.125;
+
+	//retransmit timeout before there are any rtt samples, and the limits on it after
+	private static long INITIAL_RTO_MS = 1000;
+	private static long MIN_RTO_MS = 150;
+	private static long MAX_RTO_MS = 10000;
+	//smallest the variance part of the timeout can be, so a very steady link doesn't get a timeout right on the rtt
+	private static double MIN_RTO_VARIANCE_MS = 20;
+
+	//this many heartbeat intervals in a row with nothing heard from the device and the link is dead
+	private static int DEAD_AFTER_MISSES = 3;
+	//loss rate above this and the link is degraded even if the last heartbeat made it
+	private static double DEGRADED_LOSS_RATE = 0.1;
+
+	//-1 until the first sample comes in
+	private double smoothedRttMs = -1;
+	private double rttVarianceMs = 0;
+	private double lossRate = 0;
+	private int consecutiveMisses = 0;
+
+	private volatile LINK_STATE state = LINK_STATE.HEALTHY;
+
+	//written by the ReadThread on every frame, so it's volatile instead of locked
+	private volatile long lastReceiveMs = System.currentTimeMillis();
+	//lastReceiveMs as of the previous heartbeat tick, to tell if anything came in since then
+	private long lastCheckedReceiveMs = lastReceiveMs;
+
+	private final CopyOnWriteArrayList<LinkStateListener> listeners = new CopyOnWriteArrayList<LinkStateListener>();
+
+	/*
+	 * Start over, used when a new connection is made
+	 */
+	public void reset()
+	{
+		synchronized(this)
+		{
+			smoothedRttMs = -1;
+			rttVarianceMs = 0;
+			lossRate = 0;
+			consecutiveMisses = 0;
+			lastReceiveMs = System.currentTimeMillis();
+			lastCheckedReceiveMs = lastReceiveMs;
+		}
+		setState(LINK_STATE.HEALTHY);
+	}
+
+	/*
+	 * Called by the ReadThread whenever a full frame comes in. Never blocks.
+	 */
+	public void onFrameReceived()
+	{
+		lastReceiveMs = System.currentTimeMillis();
+	}
+
+	/*
+	 * Whether anything has been heard from the device since the last heartbeat tick.
+	 * If so there's no need to ping, the normal traffic already shows the link is alive
+	 */
+	public synchronized boolean heardSinceLastTick()
+	{
+		return lastReceiveMs != lastCheckedReceiveMs;
+	}
+
+	/*
+	 * A request got its response after rttMs
+	 */
+	public synchronized void addRttSample(long rttMs)
+	{
+		if(smoothedRttMs < 0)
+		{
+			smoothedRttMs = rttMs;
+			rttVarianceMs = rttMs / 2.0;
+		}
+		else
+		{
+			rttVarianceMs = (1 - RTT_BETA) * rttVarianceMs + RTT_BETA * Math.abs(smoothedRttMs - rttMs);
+			smoothedRttMs = (1 - RTT_ALPHA) * smoothedRttMs + RTT_ALPHA * rttMs;
+		}
+	}
+
+	/*
+	 * Called once per heartbeat interval by the heartbeat thread.
+	 * alive is whether the link showed any sign of life this interval, either a received frame or an answered ping
+	 */
+	public void onHeartbeat(boolean alive)
+	{
+		LINK_STATE newState;
+		synchronized(this)
+		{
+			lastCheckedReceiveMs = lastReceiveMs;
+
+			lossRate = (1 - LOSS_GAIN) * lossRate + (alive ? 0 : LOSS_GAIN);
+			consecutiveMisses = alive ? 0 : consecutiveMisses + 1;
+
+			if(consecutiveMisses >= DEAD_AFTER_MISSES)
+				newState = LINK_STATE.DEAD;
+			else if(consecutiveMisses > 0 || lossRate > DEGRADED_LOSS_RATE)
+				newState = LINK_STATE.DEGRADED;
+			else
+				newState = LINK_STATE.HEALTHY;
+		}
+		setState(newState);
+	}
+
+	/*
+	 * Used when we know for sure the link is gone, like the socket throwing on read.
+	 * Stays DEAD until reset() or the device is heard from again, the next missed heartbeat doesn't make it DEGRADED
+	 */
+	public void markDead()
+	{
+		synchronized(this)
+		{
+			consecutiveMisses = DEAD_AFTER_MISSES;
+		}
+		setState(LINK_STATE.DEAD);
+	}
+
+	private void setState(LINK_STATE newState)
+	{
+		//listeners get called outside the lock, so they can ask the monitor for its numbers
+		synchronized(this)
+		{
+			if(newState == state)
+				return;
+			state = newState;
+		}
+
+		for(LinkStateListener listener : listeners)
+			listener.onLinkStateChanged(newState, this);
+	}
+
+	public LINK_STATE getState()
+	{
+		return state;
+	}
+
+	/*
+	 * Smoothed round trip time in ms, or -1 if there haven't been any samples yet
+	 */
+	public synchronized double getSmoothedRttMs()
+	{
+		return smoothedRttMs;
+	}
+
+	public synchronized double getRttVarianceMs()
+	{
+		return rttVarianceMs;
+	}
+
+	/*
+	 * How long to wait for a response before deciding it's lost, srtt + 4 * rttvar like TCP
+	 */
+	public synchronized long getRetransmitTimeoutMs()
+	{
+		if(smoothedRttMs < 0)
+			return INITIAL_RTO_MS;
+
+		long rto = Math.round(smoothedRttMs + Math.max(MIN_RTO_VARIANCE_MS, 4 * rttVarianceMs));
+		return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+	}
+
+	/*
+	 * Smoothed fraction of heartbeat intervals where nothing was heard, 0 to 1
+	 */
+	public synchronized double getLossRate()
+	{
+		return lossRate;
+	}
+
+	public long getLastReceiveMs()
+	{
+		return lastReceiveMs;
+	}
+
+	public void addListener(LinkStateListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(LinkStateListener listener)
+	{
+		listeners.remove(listener);
+	}
+}
@@ -14,6 +14,7 @@ public class MessageResponse {
 	public static int ERROR_SEND_FAILURE = 2;
 	public static int ERROR_READ_FAILURE = 3;
 	public static int ERROR_TIMEOUT = 4;
+	public static int ERROR_TRANSFER_FAILED = 5;
 	
 	public MessageResponse(int errorCode, String response, String error)
 	{
@@ -0,0 +1,161 @@
+package com.fezDominoCommunication;
+
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Hands responses from the ReadThread over to the threads waiting on them.
+ * Every request gets its own single slot (keyed by message id) that is registered before the
+ * request goes out. The ReadThread is the only producer: it looks the slot up, claims it with a
+ * compare-and-set, drops the response in and unparks the waiting thread.  It only ever reads the map,
+ * which doesn't lock, so it never has to wait on a consumer.  Putting slots in and taking them out
+ * (which can briefly lock part of the map) is left to the consumers.
+ * Responses that nobody is waiting for (late, duplicate, or unknown id) are just dropped.
+ * The last few delivered ids are remembered so a duplicate (the device answering a retransmit as well
+ * as the original) can be told apart from a response that's just late or unknown.
+ */
+class ResponseMailbox<T> {
+
+	//one slot per outstanding request
+	private final ConcurrentHashMap<String, Slot<T>> slots = new ConcurrentHashMap<String, Slot<T>>();
+	
+	//ids delivered recently, oldest gets overwritten. Only the producer touches these so they aren't locked
+	private static int RECENT_IDS = 64;
+	private final String[] recentIds = new String[RECENT_IDS];
+	private final HashSet<String> recentIdSet = new HashSet<String>();
+	private int nextRecentId = 0;
+
+	/*
+	 * Handed back from register(), the waiting thread holds on to this so it still sees the value
+	 * even if the producer has already delivered it and taken the slot out of the map
+	 */
+	static class Slot<T>
+	{
+		final String id;
+		//thread that will be parked waiting for the value
+		final Thread waiter;
+		//written once by the producer, read by the waiter
+		volatile T value;
+		//set after value is written, or when the slot is abandoned
+		volatile boolean done = false;
+		//whoever sets this first gets to finish the slot, the producer with a value or clear() without one
+		final AtomicBoolean claimed = new AtomicBoolean(false);
+
+		Slot(String id, Thread waiter)
+		{
+			this.id = id;
+			this.waiter = waiter;
+		}
+	}
+
+	/*
+	 * Reserve a slot for a message id.  Must be called by the thread that will wait, and before
+	 * the request is sent, otherwise a fast response could arrive before anyone is listening
+	 */
+	public Slot<T> register(String id)
+	{
+		Slot<T> slot = new Slot<T>(id, Thread.currentThread());
+		slots.put(id, slot);
+		return slot;
+	}
+
+	/*
+	 * Give up on a slot, any response that shows up later will be dropped.
+	 * Consumers only, this is the only way a slot leaves the map apart from clear()
+	 */
+	public void unregister(Slot<T> slot)
+	{
+		slots.remove(slot.id, slot);
+	}
+
+	/*
+	 * Called by the producer (ReadThread). Never blocks, and leaves the slot for the consumer to take out.
+	 * Returns false if nobody was waiting on this id, or its slot already had a value or was cleared
+	 */
+	public boolean deliver(String id, T value)
+	{
+		Slot<T> slot = slots.get(id);
+		if(slot == null || !slot.claimed.compareAndSet(false, true))
+			return false;
+
+		slot.value = value;
+		slot.done = true;
+		LockSupport.unpark(slot.waiter);
+		
+		if(recentIds[nextRecentId] != null)
+			recentIdSet.remove(recentIds[nextRecentId]);
+		recentIds[nextRecentId] = id;
+		recentIdSet.add(id);
+		nextRecentId = (nextRecentId + 1) % RECENT_IDS;
+		return true;
+	}
+	
+	/*
+	 * Whether a response for this id was delivered recently. Producer only, like deliver()
+	 */
+	public boolean wasRecentlyDelivered(String id)
+	{
+		return recentIdSet.contains(id);
+	}
+
+	/*
+	 * Park the calling thread until the response for the slot shows up or the timeout runs out.
+	 * Returns null on timeout or if the mailbox was cleared.  The slot is taken out either way.
+	 */
+	public T await(Slot<T> slot, long timeoutMs)
+	{
+		T value = poll(slot, timeoutMs);
+		unregister(slot);
+		return value;
+	}
+	
+	/*
+	 * Same as await, except on a timeout the slot stays registered so a response can still arrive for it,
+	 * used when the request is about to be retransmitted with the same id.
+	 * A null with slot.done set means the mailbox was cleared, not a timeout.  Once done the slot is taken out.
+	 * Interrupting the waiting thread makes it give up early, like a timeout, and its interrupt flag stays set
+	 */
+	public T poll(Slot<T> slot, long timeoutMs)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while(!slot.done)
+		{
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				break;
+
+			//parkNanos returns straight away while the interrupt flag is set, so looping on it would spin
+			if(Thread.currentThread().isInterrupted())
+				break;
+
+			//spurious wakeups just go around the loop again
+			LockSupport.parkNanos(this, remaining);
+		}
+
+		//the producer doesn't take delivered slots out of the map, that's up to us
+		if(slot.done)
+			unregister(slot);
+		return slot.value;
+	}
+
+	/*
+	 * Wake up everyone that is waiting, used when the connection goes away
+	 * They will see no value and treat it as a timeout
+	 */
+	public void clear()
+	{
+		for(String id : slots.keySet())
+		{
+			Slot<T> slot = slots.remove(id);
+			//a slot the producer already claimed gets its value, it doesn't need waking with nothing
+			if(slot != null && slot.claimed.compareAndSet(false, true))
+			{
+				slot.done = true;
+				LockSupport.unpark(slot.waiter);
+			}
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package com.fezDominoCommunication;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/*
+ * A response that comes back in pieces, for things too big for one frame (log dumps, sample buffers).
+ * The device answers a streaming request with any number of "C:<id>:<chunk>" frames, then ends it with the
+ * usual "R:<id>:<msg>", so the end also says whether it worked.  Returned by Bluetooth.sendStreaming().
+ *
+ * Chunks are handed over one at a time by nextChunk() as they arrive, nothing holds on to the whole reply.
+ * The device can only send as many chunks as it has been given credit for, starting with the window.
+ * As chunks get taken by nextChunk() more credit goes back ("<id>:MORE:<n>"), so a slow consumer slows the
+ * device down instead of the chunks piling up here, and at most a window's worth is ever queued.
+ *
+ * Two things can stall a stream.  If the device has credit and the queue is empty but nothing arrives for the
+ * idle timeout, the device is given up on (it may never send the end frame).  If chunks are queued and nobody
+ * has called nextChunk() for ABANDONED_TIMEOUT_MS, the reader is taken to have wandered off.  A reader can
+ * spend as long as it needs on each chunk up to that, backpressure holds the device off meanwhile.
+ * Call cancel() when you stop reading before the end, rather than relying on that.
+ *
+ * The ReadThread never waits on the reader: chunks go on a non-locking queue and the reader is unparked,
+ * the same way ResponseMailbox hands over single responses.  Only one thread should read a stream at a time.
+ */
+public class ResponseStream {
+
+	//put on the queue after the last chunk, compared by reference so no chunk can be mistaken for it
+	private static final String END = new String("END");
+
+	//chunks waiting and nobody asking for them for this long means the reader has gone
+	private static long ABANDONED_TIMEOUT_MS = 5 * 60 * 1000;
+
+	String TAG = "ResponseStream";
+
+	private Bluetooth bluetooth;
+	private String id;
+	private int window;
+	private long idleTimeoutMs;
+
+	//filled by the ReadThread, drained by whoever calls nextChunk()
+	private final ConcurrentLinkedQueue<String> chunks = new ConcurrentLinkedQueue<String>();
+	//thread parked in nextChunk(), if any, unparked when something goes on the queue
+	private volatile Thread reader = null;
+
+	//how the stream ended, set once just before END goes on the queue. Chunks ahead of END still have to be read
+	private final AtomicReference<MessageResponse> endResult = new AtomicReference<MessageResponse>();
+	//endResult again, but only once END has been taken off the queue, so it never shows while chunks are left
+	private volatile MessageResponse result = null;
+	private volatile boolean finished = false;
+
+	//chunks the device has been allowed to send, and has sent. It's stalled if it has credit left but sends nothing
+	private volatile long creditsGranted;
+	private volatile long chunksArrived = 0;
+	//last time a chunk came in or the device got more credit, on ClockSync's clock
+	private volatile long lastDeviceActivityMs = ClockSync.nowMs();
+	//last time the reader called nextChunk()
+	private volatile long lastReadMs = ClockSync.nowMs();
+
+	//chunks taken since credit was last sent back
+	private int unacknowledged = 0;
+	private long chunksReceived = 0;
+	private long bytesReceived = 0;
+
+	ResponseStream(Bluetooth bluetooth, String id, int window, long idleTimeoutMs)
+	{
+		this.bluetooth = bluetooth;
+		this.id = id;
+		this.window = window;
+		this.idleTimeoutMs = idleTimeoutMs;
+		//Bluetooth grants the first window along with the request
+		this.creditsGranted = window;
+	}
+
+	/*
+	 * A stream that failed before it started, it's already over
+	 */
+	ResponseStream(MessageResponse failure)
+	{
+		this.endResult.set(failure);
+		this.result = failure;
+		this.finished = true;
+	}
+
+	/*
+	 * Waits up to timeoutMs for the next chunk.  Returns null when there isn't one: if isFinished() the stream
+	 * is over and getResult() says how, otherwise it timed out and you can call again or cancel()
+	 */
+	public String nextChunk(long timeoutMs)
+	{
+		if(finished)
+			return null;
+
+		lastReadMs = ClockSync.nowMs();
+		String chunk = take(timeoutMs);
+
+		if(chunk == null)
+		{
+			//interrupted, give up without touching the stream, the interrupt flag stays set
+			if(Thread.currentThread().isInterrupted())
+				return null;
+
+			//the device may have stalled. Whatever raced in ahead of END still gets read
+			if(!expireIfIdle())
+				return null;
+			chunk = chunks.poll();
+			if(chunk == null)
+				return null;
+		}
+
+		if(chunk == END)
+		{
+			finish();
+			return null;
+		}
+
+		lastReadMs = ClockSync.nowMs();
+		chunksReceived++;
+		bytesReceived += chunk.length();
+
+		//hand back credit in batches rather than a frame per chunk, but soon enough the device never runs dry
+		unacknowledged++;
+		if(unacknowledged >= Math.max(1, window / 2))
+		{
+			if(bluetooth.sendStreamCredit(id, unacknowledged))
+			{
+				creditsGranted += unacknowledged;
+				lastDeviceActivityMs = ClockSync.nowMs();
+			}
+			else
+			{
+				end(MessageResponse.newError(MessageResponse.ERROR_SEND_FAILURE, "couldn't send stream credit"));
+			}
+			unacknowledged = 0;
+		}
+		return chunk;
+	}
+
+	/*
+	 * Park until there's something on the queue or the timeout runs out, null if nothing came
+	 */
+	private String take(long timeoutMs)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		//set before looking at the queue, so anything offered after an empty poll() also finds us to unpark
+		reader = Thread.currentThread();
+		try
+		{
+			while(true)
+			{
+				String chunk = chunks.poll();
+				if(chunk != null)
+					return chunk;
+
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0 || Thread.currentThread().isInterrupted())
+					return null;
+
+				//spurious wakeups just go around the loop again
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+		finally
+		{
+			reader = null;
+		}
+	}
+
+	/*
+	 * Whether every chunk has been read and the stream is over
+	 */
+	public boolean isFinished()
+	{
+		return finished;
+	}
+
+	/*
+	 * How the stream ended, the last "R" frame's message if it worked.  null until isFinished()
+	 */
+	public MessageResponse getResult()
+	{
+		return result;
+	}
+
+	/*
+	 * Stop the stream.  The device gets told to stop sending, and anything still on the way is dropped.
+	 * Finished as soon as this returns
+	 */
+	public void cancel()
+	{
+		if(finished)
+			return;
+
+		bluetooth.cancelStream(id);
+		end(MessageResponse.newError(MessageResponse.ERROR_UNKNOWN, "cancelled"));
+		chunks.clear();
+		finish();
+	}
+
+	public long getChunksReceived()
+	{
+		return chunksReceived;
+	}
+
+	public long getBytesReceived()
+	{
+		return bytesReceived;
+	}
+
+	String getId()
+	{
+		return id;
+	}
+
+	/*
+	 * Called by the ReadThread for each chunk frame, takes no locks.
+	 * If the reader ends the stream at the same moment the chunk can land behind END, where it's never read,
+	 * which is fine as the reader was giving up on the rest anyway.  The ReadThread's own end() can't race it
+	 */
+	void onChunk(String chunk)
+	{
+		if(endResult.get() != null)
+			return;
+
+		//the device isn't supposed to get more than a window ahead, but don't lose data if it does.
+		//size() walks the queue, but there's only about a window's worth on it
+		int queued = chunks.size();
+		if(queued >= window)
+			Log.d(TAG, "Stream " + id + " is over its window, " + Integer.toString(queued) + " chunks queued");
+		chunks.offer(chunk);
+		chunksArrived++;
+		lastDeviceActivityMs = ClockSync.nowMs();
+		wakeReader();
+	}
+
+	/*
+	 * The end frame came in, or the stream was given up on.  Only the first call counts.
+	 * The reader sees it after the chunks that came before it
+	 */
+	void end(MessageResponse result)
+	{
+		if(!endResult.compareAndSet(null, result))
+			return;
+
+		chunks.offer(END);
+		wakeReader();
+	}
+
+	private void wakeReader()
+	{
+		Thread waiting = reader;
+		if(waiting != null)
+			LockSupport.unpark(waiting);
+	}
+
+	/*
+	 * Give up on the stream if the device has stalled, or the reader has gone (see the class comment).
+	 * Called by whoever is reading when it times out, and by the heartbeat thread for streams nobody is reading
+	 */
+	boolean expireIfIdle()
+	{
+		if(endResult.get() != null)
+			return true;
+
+		long now = ClockSync.nowMs();
+		String reason;
+		if(chunks.isEmpty())
+		{
+			//waiting on the device, which is only stalled if it's allowed to send
+			long waitingMs = now - lastDeviceActivityMs;
+			if(creditsGranted <= chunksArrived || waitingMs < idleTimeoutMs)
+				return false;
+			reason = "device sent nothing for " + Long.toString(waitingMs) + " ms";
+		}
+		else
+		{
+			//waiting on the reader, a slow one is fine, one that's stopped asking isn't
+			long waitingMs = now - lastReadMs;
+			if(waitingMs < ABANDONED_TIMEOUT_MS)
+				return false;
+			reason = "nothing read for " + Long.toString(waitingMs) + " ms";
+		}
+
+		Log.d(TAG, "Stream " + id + " " + reason + ", giving up on it");
+		bluetooth.cancelStream(id);
+		end(MessageResponse.newError(MessageResponse.ERROR_TIMEOUT, reason));
+		return true;
+	}
+
+	/*
+	 * END has been read, now the result can show
+	 */
+	private void finish()
+	{
+		result = endResult.get();
+		finished = true;
+	}
+}
@@ -0,0 +1,64 @@
+package com.fezDominoCommunication;
+
+/*
+ * One state update from the microcontroller, along with when it was taken and how long it took to get here.
+ * Times are on our clock (see ClockSync.nowMs()) except deviceTimeMs, which is on the device's clock.
+ */
+public class StateSample {
+	String state;
+
+	//when the device took the sample, on its own clock. -1 if the frame didn't have a timestamp
+	long deviceTimeMs;
+	//when the device took the sample, on our clock. -1 if we couldn't work it out (no timestamp or clock not synced)
+	long sampledMs;
+	//when the ReadThread got the frame
+	long receivedMs;
+
+	public StateSample(String state, long deviceTimeMs, long sampledMs, long receivedMs)
+	{
+		this.state = state;
+		this.deviceTimeMs = deviceTimeMs;
+		this.sampledMs = sampledMs;
+		this.receivedMs = receivedMs;
+	}
+
+	public String getState()
+	{
+		return this.state;
+	}
+
+	public long getDeviceTimeMs()
+	{
+		return this.deviceTimeMs;
+	}
+
+	public long getSampledMs()
+	{
+		return this.sampledMs;
+	}
+
+	public long getReceivedMs()
+	{
+		return this.receivedMs;
+	}
+
+	/*
+	 * Time from the device taking the sample to us receiving it, or -1 if unknown
+	 */
+	public long getOneWayLatencyMs()
+	{
+		if(this.sampledMs < 0)
+			return -1;
+		return this.receivedMs - this.sampledMs;
+	}
+
+	/*
+	 * How old the sample is right now, or -1 if unknown
+	 */
+	public long getAgeMs()
+	{
+		if(this.sampledMs < 0)
+			return -1;
+		return ClockSync.nowMs() - this.sampledMs;
+	}
+}
@@ -0,0 +1,709 @@
+package com.fezDominoCommunication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/*
+ * Append only, column oriented file of state samples for long runs.
+ * A state string is taken to be comma separated numbers, each one is a field.
+ *
+ * The file is a header followed by blocks of up to BLOCK_SAMPLES samples:
+ *   header: "FEZS", int version, int field count
+ *   block:  int sample count, long earliest time, long latest time, int raw length, int compressed length, deflated data
+ * Inside a block the timestamps come first as zigzag varint deltas, then each field as its own column.
+ * A column where every value is a whole number is stored as zigzag varint deltas too, otherwise as raw doubles.
+ * Since the block header has the time range uncompressed, queries skip blocks outside the range without inflating them.
+ *
+ * append() is called on the ReadThread and only adds to a queue. A writer thread turns the queue into blocks
+ * once there's a full block or the oldest queued sample is MAX_BLOCK_AGE_MS old.
+ * Timestamps are wall clock ms so files from different runs line up.
+ */
+public class StateStore implements Bluetooth.StateListener {
+
+	/*
+	 * Summary of one field over one bucket of time
+	 */
+	public static class Bucket
+	{
+		long startMs;
+		int count;
+		double[] min;
+		double[] max;
+		double[] sum;
+
+		Bucket(long startMs, int fieldCount)
+		{
+			this.startMs = startMs;
+			this.min = new double[fieldCount];
+			this.max = new double[fieldCount];
+			this.sum = new double[fieldCount];
+			for(int i=0;i<fieldCount;i++)
+			{
+				this.min[i] = Double.POSITIVE_INFINITY;
+				this.max[i] = Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		void add(double[] values)
+		{
+			count++;
+			for(int i=0;i<min.length;i++)
+			{
+				min[i] = Math.min(min[i], values[i]);
+				max[i] = Math.max(max[i], values[i]);
+				sum[i] += values[i];
+			}
+		}
+
+		public long getStartMs()
+		{
+			return this.startMs;
+		}
+
+		public int getCount()
+		{
+			return this.count;
+		}
+
+		public double getMin(int field)
+		{
+			return this.min[field];
+		}
+
+		public double getMax(int field)
+		{
+			return this.max[field];
+		}
+
+		public double getAvg(int field)
+		{
+			return this.sum[field] / this.count;
+		}
+	}
+
+	/*
+	 * Gets every sample in a time range, in the order they were stored
+	 */
+	public static interface SampleVisitor
+	{
+		void onSample(long timeMs, double[] values);
+	}
+
+	private static byte[] MAGIC = {'F', 'E', 'Z', 'S'};
+	private static int VERSION = 1;
+	private static int FILE_HEADER_BYTES = 12;
+	private static int BLOCK_HEADER_BYTES = 28;
+
+	//samples per block, more compresses better but a query has to inflate the whole block
+	private static int BLOCK_SAMPLES = 512;
+	//a partial block gets written once its oldest sample is this old, so a crash doesn't lose much
+	private static long MAX_BLOCK_AGE_MS = 10000;
+	//how often the writer thread wakes up to look at the queue
+	private static long FLUSH_INTERVAL_MS = 1000;
+	//samples kept for retrying while writes fail (disk full), past this the oldest get dropped
+	private static int MAX_PENDING_SAMPLES = BLOCK_SAMPLES * 32;
+
+	private static byte COLUMN_VARINT = 0;
+	private static byte COLUMN_DOUBLE = 1;
+
+	private static String FIELD_SPLIT = ",";
+
+	String TAG = "StateStore";
+
+	private File file;
+	//-1 until it's read from an existing file or learned from the first sample
+	private volatile int fieldCount = -1;
+
+	//filled by the ReadThread, emptied by the writer thread
+	private final ConcurrentLinkedQueue<QueuedSample> queue = new ConcurrentLinkedQueue<QueuedSample>();
+
+	private WriterThread writerThread;
+
+	private static class QueuedSample
+	{
+		long timeMs;
+		String state;
+
+		QueuedSample(long timeMs, String state)
+		{
+			this.timeMs = timeMs;
+			this.state = state;
+		}
+	}
+
+	/*
+	 * Open (or create) a store, and start the writer thread
+	 */
+	public StateStore(File file) throws IOException
+	{
+		this.file = file;
+		if(file.exists() && file.length() > 0)
+			this.fieldCount = recover(file);
+
+		this.writerThread = new WriterThread(new FileOutputStream(file, true));
+		this.writerThread.start();
+	}
+
+	/*
+	 * Called on the ReadThread for every state update, just queues it
+	 */
+	public void onStateUpdate(StateSample sample)
+	{
+		append(sample);
+	}
+
+	public void append(StateSample sample)
+	{
+		//move from our monotonic clock to the wall clock, using the device's sample time if we know it
+		long localMs = sample.getSampledMs() >= 0 ? sample.getSampledMs() : sample.getReceivedMs();
+		long wallMs = System.currentTimeMillis() - (ClockSync.nowMs() - localMs);
+		queue.add(new QueuedSample(wallMs, sample.getState()));
+	}
+
+	/*
+	 * Write out everything that's queued and stop the writer thread
+	 */
+	public void close()
+	{
+		writerThread.stopWriting();
+		try
+		{
+			writerThread.join();
+		} catch(InterruptedException e) {
+			Log.d(TAG, "Interrupted waiting for writer thread to finish");
+		}
+	}
+
+	/*
+	 * Number of fields per sample, -1 if nothing has been written yet
+	 */
+	public int getFieldCount()
+	{
+		return fieldCount;
+	}
+
+	/*
+	 * Split fromMs to toMs into buckets of bucketMs and give the min/max/avg of each field in each.
+	 * Buckets with no samples are left out.  Only blocks that overlap the range get inflated.
+	 */
+	public List<Bucket> query(long fromMs, long toMs, final long bucketMs) throws IOException
+	{
+		//keyed by start time, samples are only roughly in time order
+		final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+		final long start = fromMs;
+		scan(fromMs, toMs, new SampleVisitor() {
+
+			public void onSample(long timeMs, double[] values) {
+				long bucketStart = start + ((timeMs - start) / bucketMs) * bucketMs;
+				Bucket bucket = buckets.get(bucketStart);
+				if(bucket == null)
+				{
+					bucket = new Bucket(bucketStart, values.length);
+					buckets.put(bucketStart, bucket);
+				}
+				bucket.add(values);
+			}
+		});
+		return new ArrayList<Bucket>(buckets.values());
+	}
+
+	/*
+	 * Visit every sample with fromMs <= time < toMs that has made it to disk
+	 */
+	public void scan(long fromMs, long toMs, SampleVisitor visitor) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			if(in.length() < FILE_HEADER_BYTES)
+				return;
+			int fields = readFileHeader(in, false);
+
+			long pos = FILE_HEADER_BYTES;
+			long length = in.length();
+			while(pos + BLOCK_HEADER_BYTES <= length)
+			{
+				in.seek(pos);
+				int count = in.readInt();
+				long earliestMs = in.readLong();
+				long latestMs = in.readLong();
+				int rawLength = in.readInt();
+				int compressedLength = in.readInt();
+
+				long next = pos + BLOCK_HEADER_BYTES + compressedLength;
+				//a block that's still being written, nothing after it yet either
+				if(compressedLength < 0 || next > length)
+					break;
+
+				if(latestMs >= fromMs && earliestMs < toMs)
+				{
+					byte[] compressed = new byte[compressedLength];
+					in.readFully(compressed);
+					decodeBlock(inflate(compressed, rawLength), count, fields, fromMs, toMs, visitor);
+				}
+
+				pos = next;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/*
+	 * Cut off whatever a crash left half written at the end of an existing file, so new blocks go straight
+	 * after the last complete one and not after garbage a stale block header would point into.
+	 * Returns the field count, or -1 if not even the file header made it and the file starts over
+	 */
+	private int recover(File file) throws IOException
+	{
+		RandomAccessFile existing = new RandomAccessFile(file, "rw");
+		try
+		{
+			long length = existing.length();
+			if(length < FILE_HEADER_BYTES)
+			{
+				Log.d(TAG, "Store file header is incomplete, starting the file over");
+				existing.setLength(0);
+				return -1;
+			}
+
+			int fields = readFileHeader(existing, false);
+
+			long pos = FILE_HEADER_BYTES;
+			while(pos + BLOCK_HEADER_BYTES <= length)
+			{
+				existing.seek(pos + BLOCK_HEADER_BYTES - 4);
+				int compressedLength = existing.readInt();
+				long next = pos + BLOCK_HEADER_BYTES + compressedLength;
+				if(compressedLength < 0 || next > length)
+					break;
+				pos = next;
+			}
+
+			if(pos < length)
+			{
+				Log.d(TAG, "Dropping " + Long.toString(length - pos) + " bytes of incomplete block at the end of the store");
+				existing.setLength(pos);
+			}
+			return fields;
+		}
+		finally
+		{
+			existing.close();
+		}
+	}
+
+	/*
+	 * Returns the field count, closes the file if asked to
+	 */
+	private int readFileHeader(RandomAccessFile in, boolean close) throws IOException
+	{
+		try
+		{
+			in.seek(0);
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for(int i=0;i<MAGIC.length;i++)
+			{
+				if(magic[i] != MAGIC[i])
+					throw new IOException("Not a state store file");
+			}
+
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported state store version " + Integer.toString(version));
+
+			return in.readInt();
+		}
+		finally
+		{
+			if(close)
+				in.close();
+		}
+	}
+
+	/*
+	 * Turn a state string into one number per field. Missing or unparseable fields are NaN
+	 */
+	private double[] parseFields(String state, int fields)
+	{
+		String[] parts = state.split(FIELD_SPLIT);
+		double[] values = new double[fields];
+		for(int i=0;i<fields;i++)
+		{
+			values[i] = Double.NaN;
+			if(i < parts.length)
+			{
+				try
+				{
+					values[i] = Double.parseDouble(parts[i].trim());
+				} catch(NumberFormatException e) {}
+			}
+		}
+		return values;
+	}
+
+	private byte[] encodeBlock(List<QueuedSample> samples, int fields) throws IOException
+	{
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(raw);
+
+		long previous = 0;
+		long earliestMs = Long.MAX_VALUE;
+		long latestMs = Long.MIN_VALUE;
+		for(QueuedSample sample : samples)
+		{
+			writeVarLong(out, zigzag(sample.timeMs - previous));
+			previous = sample.timeMs;
+			earliestMs = Math.min(earliestMs, sample.timeMs);
+			latestMs = Math.max(latestMs, sample.timeMs);
+		}
+
+		double[][] columns = new double[fields][samples.size()];
+		for(int row=0;row<samples.size();row++)
+		{
+			double[] values = parseFields(samples.get(row).state, fields);
+			for(int field=0;field<fields;field++)
+				columns[field][row] = values[field];
+		}
+
+		for(int field=0;field<fields;field++)
+		{
+			double[] column = columns[field];
+			boolean whole = true;
+			for(double value : column)
+			{
+				if(value != Math.rint(value) || Math.abs(value) > (1L << 52))
+				{
+					whole = false;
+					break;
+				}
+			}
+
+			if(whole)
+			{
+				out.writeByte(COLUMN_VARINT);
+				long previousValue = 0;
+				for(double value : column)
+				{
+					writeVarLong(out, zigzag((long)value - previousValue));
+					previousValue = (long)value;
+				}
+			}
+			else
+			{
+				out.writeByte(COLUMN_DOUBLE);
+				for(double value : column)
+					out.writeDouble(value);
+			}
+		}
+		out.flush();
+		byte[] rawBytes = raw.toByteArray();
+
+		Deflater deflater = new Deflater();
+		deflater.setInput(rawBytes);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		while(!deflater.finished())
+		{
+			int bytes = deflater.deflate(buffer);
+			compressed.write(buffer, 0, bytes);
+		}
+		deflater.end();
+		byte[] compressedBytes = compressed.toByteArray();
+
+		ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_HEADER_BYTES + compressedBytes.length);
+		DataOutputStream blockOut = new DataOutputStream(block);
+		blockOut.writeInt(samples.size());
+		blockOut.writeLong(earliestMs);
+		blockOut.writeLong(latestMs);
+		blockOut.writeInt(rawBytes.length);
+		blockOut.writeInt(compressedBytes.length);
+		blockOut.write(compressedBytes);
+		blockOut.flush();
+		return block.toByteArray();
+	}
+
+	private byte[] inflate(byte[] compressed, int rawLength) throws IOException
+	{
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		byte[] raw = new byte[rawLength];
+		try
+		{
+			int filled = 0;
+			while(filled < rawLength && !inflater.finished())
+			{
+				int bytes = inflater.inflate(raw, filled, rawLength - filled);
+				//nothing came out and nothing more can go in, the block is cut short or isn't deflate data
+				if(bytes == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Corrupt block: compressed data ends early");
+				filled += bytes;
+			}
+		} catch(DataFormatException e) {
+			throw new IOException("Corrupt block: " + e.toString());
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+
+	private void decodeBlock(byte[] raw, int count, int fields, long fromMs, long toMs, SampleVisitor visitor) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+
+		long[] times = new long[count];
+		long previous = 0;
+		for(int i=0;i<count;i++)
+		{
+			previous += unzigzag(readVarLong(in));
+			times[i] = previous;
+		}
+
+		double[][] columns = new double[fields][count];
+		for(int field=0;field<fields;field++)
+		{
+			byte mode = in.readByte();
+			if(mode == COLUMN_VARINT)
+			{
+				long previousValue = 0;
+				for(int i=0;i<count;i++)
+				{
+					previousValue += unzigzag(readVarLong(in));
+					columns[field][i] = previousValue;
+				}
+			}
+			else
+			{
+				for(int i=0;i<count;i++)
+					columns[field][i] = in.readDouble();
+			}
+		}
+
+		for(int i=0;i<count;i++)
+		{
+			if(times[i] < fromMs || times[i] >= toMs)
+				continue;
+
+			double[] values = new double[fields];
+			for(int field=0;field<fields;field++)
+				values[field] = columns[field][i];
+			visitor.onSample(times[i], values);
+		}
+	}
+
+	private static long zigzag(long n)
+	{
+		return (n << 1) ^ (n >> 63);
+	}
+
+	private static long unzigzag(long n)
+	{
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		int shift = 0;
+		while(true)
+		{
+			byte b = in.readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+			shift += 7;
+		}
+	}
+
+	/*
+	 * Drains the queue into blocks and appends them to the file, so the ReadThread never touches the disk
+	 */
+	private class WriterThread extends Thread
+	{
+		private FileOutputStream out;
+
+		private volatile boolean continueWriting = true;
+
+		//samples taken off the queue that haven't made a full block yet
+		private List<QueuedSample> pending = new ArrayList<QueuedSample>();
+
+		//set if a failed write couldn't be undone, nothing more gets written
+		private boolean broken = false;
+
+		private String TAG = "StateStoreWriter";
+
+		public WriterThread(FileOutputStream out)
+		{
+			this.out = out;
+		}
+
+		public void stopWriting()
+		{
+			this.continueWriting = false;
+			this.interrupt();
+		}
+
+		public void run()
+		{
+			while(this.continueWriting)
+			{
+				try
+				{
+					Thread.sleep(FLUSH_INTERVAL_MS);
+				} catch(InterruptedException e) {}
+
+				flush(false);
+			}
+
+			//whatever is left goes out, even if it's a small block
+			flush(true);
+			try
+			{
+				out.close();
+			} catch(IOException e) {
+				Log.d(TAG, "Failed to close store file: " + e.toString());
+			}
+		}
+
+		private void flush(boolean all)
+		{
+			QueuedSample sample;
+			while((sample = queue.poll()) != null)
+				pending.add(sample);
+
+			if(pending.isEmpty())
+				return;
+
+			if(broken)
+			{
+				Log.d(TAG, "Store file is unusable, dropping " + Integer.toString(pending.size()) + " samples");
+				pending.clear();
+				return;
+			}
+
+			//on a failure the samples are kept for the next flush, up to a limit
+			if(!writeBlocks(all))
+				dropOverflow();
+		}
+
+		/*
+		 * Returns false if a write failed, whatever was written of it has been cut off again
+		 */
+		private boolean writeBlocks(boolean all)
+		{
+			if(fieldCount < 0)
+			{
+				int fields = pending.get(0).state.split(FIELD_SPLIT).length;
+				ByteArrayOutputStream header = new ByteArrayOutputStream(FILE_HEADER_BYTES);
+				DataOutputStream headerOut = new DataOutputStream(header);
+				try
+				{
+					headerOut.write(MAGIC);
+					headerOut.writeInt(VERSION);
+					headerOut.writeInt(fields);
+				} catch(IOException e) {}
+				if(!write(header.toByteArray()))
+					return false;
+				fieldCount = fields;
+			}
+
+			while(pending.size() >= BLOCK_SAMPLES)
+			{
+				if(!writeBlock(pending.subList(0, BLOCK_SAMPLES)))
+					return false;
+				pending = new ArrayList<QueuedSample>(pending.subList(BLOCK_SAMPLES, pending.size()));
+			}
+
+			boolean tooOld = !pending.isEmpty() && System.currentTimeMillis() - pending.get(0).timeMs > MAX_BLOCK_AGE_MS;
+			if(!pending.isEmpty() && (all || tooOld))
+			{
+				if(!writeBlock(pending))
+					return false;
+				pending.clear();
+			}
+			return true;
+		}
+
+		private boolean writeBlock(List<QueuedSample> samples)
+		{
+			byte[] block;
+			try
+			{
+				block = encodeBlock(samples, fieldCount);
+			} catch(IOException e) {
+				Log.d(TAG, "Failed to encode state block: " + e.toString());
+				return false;
+			}
+			return write(block);
+		}
+
+		/*
+		 * Append bytes to the file.  If that fails part way, the file is cut back to where it was, otherwise
+		 * the next block would go after the fragment and the fragment's header would point into it
+		 */
+		private boolean write(byte[] bytes)
+		{
+			FileChannel channel = out.getChannel();
+			long offset = -1;
+			try
+			{
+				offset = channel.position();
+				out.write(bytes);
+				return true;
+			} catch(IOException e) {
+				Log.d(TAG, "Failed to write to store file: " + e.toString());
+			}
+
+			try
+			{
+				if(offset >= 0)
+					channel.truncate(offset);
+			} catch(IOException e) {
+				//anything written after this would be unreadable, better to stop recording
+				Log.d(TAG, "Couldn't cut off a partly written block, not writing to the store any more: " + e.toString());
+				broken = true;
+			}
+			return false;
+		}
+
+		private void dropOverflow()
+		{
+			if(pending.size() <= MAX_PENDING_SAMPLES)
+				return;
+
+			int drop = pending.size() - MAX_PENDING_SAMPLES;
+			Log.d(TAG, "Writes keep failing, dropping the oldest " + Integer.toString(drop) + " samples");
+			pending = new ArrayList<QueuedSample>(pending.subList(drop, pending.size()));
+		}
+	}
+}